@@ -0,0 +1,23 @@
+package de.dualuse.glow;
+
+/**
+ * A TextureSource of precompressed blocks, uploaded with glCompressedTexImage2D/glCompressedTexSubImage2D.
+ * {@link #grab(int, int, int, int, java.nio.ByteBuffer, int, int)} copies the blocks covering the given pixel region,
+ * whose offsets are multiples of the block size, bytesPerLine being the size of one row of blocks.
+ * getFormat() returns the compressed internal format, getDepth() the bits per pixel.
+ */
+public interface CompressedTextureSource extends TextureSource {
+	public int getBlockWidth();
+	public int getBlockHeight();
+	public int getBytesPerBlock();
+
+	@Override default public int getType() { return 0; }
+	@Override default public int getDepth() { return getBytesPerBlock()*8/(getBlockWidth()*getBlockHeight()); }
+
+	/**
+	 * @return bytes of a row of blocks covering width pixels
+	 */
+	default public int getBytesPerLine(int width) {
+		return (width+getBlockWidth()-1)/getBlockWidth()*getBytesPerBlock();
+	}
+}
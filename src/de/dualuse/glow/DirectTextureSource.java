@@ -0,0 +1,26 @@
+package de.dualuse.glow;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A TextureSource whose pixels are in direct memory already, in GL's pixel format, one line after the other.
+ * GLTexture uploads straight from that memory instead of grabbing the pixels into a staging buffer, telling GL
+ * the line stride and the upload region's position by means of GL_UNPACK_ROW_LENGTH and GL_UNPACK_SKIP_PIXELS/ROWS
+ * where needed. Compressed sources are uploaded directly only if their lines are of the size GL expects.
+ */
+public interface DirectTextureSource extends TextureSource {
+	/**
+	 * @return a direct buffer holding the pixels (the buffer's position is ignored), or null if the pixels are not available right now
+	 */
+	public ByteBuffer getBuffer();
+
+	/**
+	 * @return distance of two lines in the buffer in bytes, a line being a row of blocks for compressed sources
+	 */
+	public int getBytesPerLine();
+	
+	/**
+	 * @return index of pixel 0,0 in the buffer
+	 */
+	default public int getPixelOffset() { return 0; }
+}
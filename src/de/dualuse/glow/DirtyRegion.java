@@ -0,0 +1,135 @@
+package de.dualuse.glow;
+
+import static java.lang.Math.*;
+
+import java.util.Arrays;
+
+/**
+ * <h2>Rectangles of a TextureSource that changed since its last upload</h2>
+ *
+ * <pre>
+ * - producers mark changed rectangles, from any thread
+ * - overlapping and touching rectangles are coalesced into their bounding rectangle right away
+ * - beyond maxRectangles, the pair wasting the fewest pixels when merged is coalesced, so draining stays cheap
+ * - draining hands out the coalesced rectangles and starts over with an empty region
+ * </pre>
+ */
+public class DirtyRegion {
+	final static public int DEFAULT_MAX_RECTANGLES = 16;
+
+	public interface Rectangles {
+		void rectangle(int x, int y, int width, int height);
+	}
+
+	public final int maxRectangles;
+
+	private int[] bounds; //x0, y0, x1, y1 per rectangle, exclusive upper bounds
+	private int count = 0;
+
+	public DirtyRegion() {
+		this(DEFAULT_MAX_RECTANGLES);
+	}
+
+	public DirtyRegion(int maxRectangles) {
+		this.maxRectangles = max(1, maxRectangles);
+		this.bounds = new int[this.maxRectangles*4+4];
+	}
+
+	/**
+	 * Marks a rectangle as changed
+	 */
+	public synchronized void mark(int x, int y, int width, int height) {
+		if (width<=0 || height<=0)
+			return;
+
+		int x0 = x, y0 = y, x1 = x+width, y1 = y+height;
+
+		//absorb every rectangle that overlaps or touches the new one, the grown one may reach further ones
+		for (boolean merged = true; merged; ) {
+			merged = false;
+			for (int i=0;i<count;i++) {
+				int o = i*4;
+				if (bounds[o]>x1 || bounds[o+2]<x0 || bounds[o+1]>y1 || bounds[o+3]<y0)
+					continue;
+
+				x0 = min(x0, bounds[o]); y0 = min(y0, bounds[o+1]);
+				x1 = max(x1, bounds[o+2]); y1 = max(y1, bounds[o+3]);
+				remove(i--);
+				merged = true;
+			}
+		}
+
+		add(x0, y0, x1, y1);
+
+		while (count>maxRectangles)
+			mergeCheapest();
+	}
+
+	/**
+	 * Marks the whole source as changed
+	 */
+	public void mark(TextureSource src) {
+		mark(0, 0, src.getWidth(), src.getHeight());
+	}
+
+	public synchronized boolean isEmpty() {
+		return count==0;
+	}
+
+	/**
+	 * Hands out all changed rectangles and clears the region, rectangles marked meanwhile are kept for the next drain
+	 */
+	public void drain(Rectangles to) {
+		int[] drained;
+		synchronized (this) {
+			if (count==0)
+				return;
+
+			drained = Arrays.copyOf(bounds, count*4);
+			count = 0;
+		}
+
+		for (int o=0;o<drained.length;o+=4)
+			to.rectangle(drained[o], drained[o+1], drained[o+2]-drained[o], drained[o+3]-drained[o+1]);
+	}
+
+	///////////////////
+
+	private void add(int x0, int y0, int x1, int y1) {
+		int o = count++*4;
+		bounds[o] = x0; bounds[o+1] = y0;
+		bounds[o+2] = x1; bounds[o+3] = y1;
+	}
+
+	private void remove(int i) { //moves the last one into its place
+		System.arraycopy(bounds, --count*4, bounds, i*4, 4);
+	}
+
+	static private long area(int x0, int y0, int x1, int y1) {
+		return (long)(x1-x0)*(y1-y0);
+	}
+
+	private void mergeCheapest() {
+		int bestA = 0, bestB = 1;
+		long bestWaste = Long.MAX_VALUE;
+
+		for (int a=0;a<count;a++)
+			for (int b=a+1;b<count;b++) {
+				int p = a*4, q = b*4;
+				long union = area(min(bounds[p], bounds[q]), min(bounds[p+1], bounds[q+1]), max(bounds[p+2], bounds[q+2]), max(bounds[p+3], bounds[q+3]));
+				long waste = union-area(bounds[p], bounds[p+1], bounds[p+2], bounds[p+3])-area(bounds[q], bounds[q+1], bounds[q+2], bounds[q+3]);
+				if (waste<bestWaste) {
+					bestWaste = waste;
+					bestA = a; bestB = b;
+				}
+			}
+
+		int p = bestA*4, q = bestB*4;
+		int x0 = min(bounds[p], bounds[q]), y0 = min(bounds[p+1], bounds[q+1]);
+		int x1 = max(bounds[p+2], bounds[q+2]), y1 = max(bounds[p+3], bounds[q+3]);
+
+		remove(bestB); //b>a, so a stays where it is
+		remove(bestA);
+		mark(x0, y0, x1-x0, y1-y0); //the union may overlap further rectangles now
+	}
+}
@@ -1,10 +1,29 @@
 package de.dualuse.glow;
 
-import static java.lang.Math.min;
+import static java.lang.Math.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL33.*;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
 
 public interface FlowControl {
 	double allocate(double requested);
 	
+	/**
+	 * called on the GL thread right before the upload calls for allocated bytes are issued
+	 * @param bytes the size of the upload
+	 */
+	default void begin(double bytes) { }
+	
+	/**
+	 * called on the GL thread right after the upload calls for allocated bytes have been issued
+	 * @param bytes the size of the upload
+	 */
+	default void end(double bytes) { }
+	
 	
 	static public class Capped implements FlowControl {
 		public double uploadLimit;
@@ -99,6 +118,202 @@ public interface FlowControl {
 		}
 
 	}
-}
-
+	
+	
+	/**
+	 * learns the actual upload bandwidth from measuring each upload on the GPU (timer queries, or fence syncs if not available),
+	 * and adapts the allowance with AIMD such that uploads take about targetSeconds of GPU time per frame:
+	 * if a frame's uploads took longer, the allowance is halved, if they fit and more was requested, it grows by 10% of what the 
+	 * learned bandwidth would allow. So the same build runs on integrated and discrete GPUs without hand tuning. 
+	 * 
+	 * Measurements are collected without stalling, i.e. a few frames late. Timer queries must not be nested, 
+	 * call {@link #measureWithFences()} if the application uses GL_TIME_ELAPSED queries around its uploads itself.
+	 * Fences only tell when the GPU got past an upload, so their samples are kept only if a poll caught them 
+	 * close to that, and they feed the bandwidth estimate but not the AIMD step: the allowance then follows the 
+	 * target share of the learned bandwidth.
+	 */
+	static public class Adaptive implements FlowControl {
+		final static private int PROBES = 8;
+		final static private double DECREASE = 0.5, INCREASE = 0.1, SMOOTHING = 0.2;
+		final static public double DEFAULT_BYTES_PER_SECOND = 1e9; // see BandwidthLimited
+		
+		public final double targetSeconds, frameSeconds, minBiteSize;
+		
+		private double rate; // allowed bytes per second of wall time
+		private double bandwidth; // learned bytes per second of GPU time
+		private double timestamp = 0, polled = 0;
+		
+		private double windowStart = 0, windowCost = 0, load = 0;
+		private boolean starved = false;
+		private long samples = 0;
+		
+		private Boolean timerQueries = null; // decided on first measurement
+		private final int[] queries = new int[PROBES];
+		private final long[] fences = new long[PROBES];
+		private final double[] issued = new double[PROBES], sizes = new double[PROBES];
+		private int head = 0, tail = 0, measuring = -1;
+		
+		/**
+		 * @param targetSeconds GPU time per frame to be spent on uploads, e.g. 0.002
+		 * @param frameSeconds duration of a frame, e.g. 1/60.
+		 * @param bytesPerSecond initial bandwidth estimate
+		 * @param minBiteSize smallest upload worth issuing
+		 */
+		public Adaptive(double targetSeconds, double frameSeconds, double bytesPerSecond, double minBiteSize) {
+			this.targetSeconds = targetSeconds;
+			this.frameSeconds = frameSeconds;
+			this.minBiteSize = minBiteSize;
+			this.bandwidth = bytesPerSecond;
+			this.rate = bytesPerSecond*targetSeconds/frameSeconds;
+		}
+		
+		public Adaptive(double targetSeconds) {
+			this(targetSeconds, 1/60., DEFAULT_BYTES_PER_SECOND, 1);
+		}
+		
+		public Adaptive measureWithFences() {
+			timerQueries = false;
+			return this;
+		}
+		
+		/** @return learned upload bandwidth in bytes per second of GPU time */
+		public synchronized double getBandwidth() { return bandwidth; }
+		
+		/** @return currently allowed upload volume in bytes per second */
+		public synchronized double getRate() { return rate; }
+		
+		/** @return share of GPU time spent on uploads in the last frame window */
+		public synchronized double getLoad() { return load; }
+		
+		/** @return number of uploads measured so far */
+		public synchronized long getSamples() { return samples; }
+		
+		@Override
+		public synchronized double allocate(double howmuch) {
+			double now = System.nanoTime()/1e9;
+			double permits = min((now-timestamp)*rate, rate*frameSeconds*2); //don't save up for more than two frames
+			double toBeSpent = min(permits, howmuch);
+			
+			if (toBeSpent<howmuch && !Double.isInfinite(howmuch))
+				starved = true;
 
+			if (toBeSpent<minBiteSize)
+				return 0;
+			
+			timestamp = now-(permits-toBeSpent)/rate; //such that another call to allocate would yield the remaining permits
+			return toBeSpent;
+		}
+		
+		@Override
+		public synchronized void begin(double bytes) {
+			if (timerQueries==null) {
+				GLCapabilities caps = GL.getCapabilities();
+				timerQueries = caps.OpenGL33 || caps.GL_ARB_timer_query;
+			}
+			
+			collect();
+			
+			if ((head+1)%PROBES==tail) //all probes in flight, skip measuring this one
+				return;
+			
+			measuring = head;
+			sizes[head] = bytes;
+			
+			if (timerQueries) {
+				if (queries[head]==0)
+					queries[head] = glGenQueries();
+				
+				glBeginQuery(GL_TIME_ELAPSED, queries[head]);
+			}
+		}
+		
+		@Override
+		public synchronized void end(double bytes) {
+			if (measuring<0)
+				return;
+			
+			if (timerQueries)
+				glEndQuery(GL_TIME_ELAPSED);
+			else {
+				fences[measuring] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+				issued[measuring] = System.nanoTime()/1e9;
+			}
+			
+			head = (measuring+1)%PROBES;
+			measuring = -1;
+			
+			collect();
+		}
+		
+		//picks up finished measurements, without waiting for any
+		private void collect() {
+			double now = System.nanoTime()/1e9;
+			
+			for (;tail!=head;tail=(tail+1)%PROBES) {
+				double seconds;
+				if (timerQueries) {
+					if (glGetQueryObjecti(queries[tail], GL_QUERY_RESULT_AVAILABLE)!=GL_TRUE)
+						break;
+					
+					seconds = glGetQueryObjecti64(queries[tail], GL_QUERY_RESULT)/1e9;
+				} else {
+					int status = glClientWaitSync(fences[tail], 0, 0);
+					if (status!=GL_ALREADY_SIGNALED && status!=GL_CONDITION_SATISFIED)
+						break;
+					
+					glDeleteSync(fences[tail]);
+					fences[tail] = 0;
+					
+					//signaled somewhere between the previous poll and now, too vague if that was long ago
+					double since = max(polled, issued[tail]);
+					if (now-since>(since-issued[tail])+targetSeconds)
+						continue;
+					
+					seconds = (now+since)/2-issued[tail];
+				}
+				
+				if (seconds>0)
+					bandwidth += SMOOTHING*(sizes[tail]/seconds-bandwidth);
+				
+				windowCost += timerQueries?seconds:sizes[tail]/bandwidth;
+				samples++;
+			}
+			polled = now;
+			
+			double window = now-windowStart;
+			if (window<frameSeconds)
+				return;
+			
+			if (!timerQueries) //fence timings are too coarse to judge a single window by
+				rate = bandwidth*targetSeconds/frameSeconds;
+			else if (windowCost>targetSeconds*window/frameSeconds) //took longer than the target, back off
+				rate *= DECREASE;
+			else if (starved) //fits and wants more, probe for more
+				rate += INCREASE*bandwidth*targetSeconds/frameSeconds;
+			
+			rate = max(rate, minBiteSize/frameSeconds);
+			load = windowCost/window;
+			windowStart = now;
+			windowCost = 0;
+			starved = false;
+		}
+		
+		/**
+		 * deletes the timer queries and pending fences, to be called on the GL thread
+		 */
+		public synchronized void deleteQueries() {
+			for (int i=0;i<PROBES;i++) {
+				if (queries[i]!=0)
+					glDeleteQueries(queries[i]);
+				
+				if (fences[i]!=0)
+					glDeleteSync(fences[i]);
+				
+				queries[i] = 0;
+				fences[i] = 0;
+			}
+			head = tail = 0;
+			measuring = -1;
+		}
+	}
+}
@@ -15,6 +15,7 @@ public class GLAttribute {
     GLAttribute set(int location, int size, GLValueType type) {
         this.location = location;
         this.size = size;
+        this.type = type;
         return this;
     }
 }
@@ -20,9 +20,9 @@ public class GLFramebufferObject extends GLObjectWrapper {
 	}
 	
 	@Override protected int generateObject() { return glGenFramebuffers(); }
-	@Override protected void bindObject(int target, int name) { glBindFramebuffer(target, name); }
-	@Override protected int getObjectBinding(int target) { return glGetInteger(GL_FRAMEBUFFER_BINDING); }
-	@Override protected void deleteObject(int name) { glDeleteFramebuffers(name); }
+	@Override protected void bindObject(int target, int name) { GLState.current().bindFramebuffer(target, name); }
+	@Override protected int getObjectBinding(int target) { return GLState.current().getFramebufferBinding(target); }
+	@Override protected void deleteObject(int name) { glDeleteFramebuffers(name); GLState.current().framebufferDeleted(name); }
 	
 	////////////////////
 	
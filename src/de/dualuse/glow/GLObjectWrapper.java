@@ -1,7 +1,5 @@
 package de.dualuse.glow;
 
-import static org.lwjgl.opengl.GL11.*;
-
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.IntConsumer;
@@ -18,34 +16,99 @@ abstract class GLObjectWrapper extends GLAPI {
 	abstract protected int getObjectBinding(int target);
 	abstract protected void deleteObject(int name);
 	
-	protected<T extends GLObjectWrapper> T send(IntConsumer update) { updates.add(update); return (T)this; };
+	protected<T extends GLObjectWrapper> T send(IntConsumer update) { enqueue(update); return (T)this; };
+	
+	/**
+	 * An update that makes pending updates of the same kind obsolete, e.g. a full image upload replacing older uploads of that image 
+	 */
+	interface Coalescing extends IntConsumer {
+		/**
+		 * @return whether this update overwrites everything the pending one would do
+		 */
+		boolean supersedes(IntConsumer pending);
+		
+		/**
+		 * @return whether pending updates this one supersedes may be dropped, even though the given one was enqueued after them
+		 */
+		default boolean commutesWith(IntConsumer between) { return true; }
+		
+		/**
+		 * called when dropped from the queue in favour of a newer update
+		 */
+		default void superseded() { }
+	}
+	
+	/**
+	 * An update that may take several binds to complete, e.g. a throttled upload. It stays at the head of the queue 
+	 * keeping its progress, until it is complete
+	 */
+	interface Resumable extends IntConsumer {
+		boolean isComplete();
+	}
+	
+	/**
+	 * adds an update to the queue, dropping the pending ones it supersedes 
+	 */
+	protected void enqueue(IntConsumer update) {
+		if (update instanceof Coalescing) {
+			Coalescing newer = (Coalescing)update;
+			
+			//pending updates before the last one that must not be reordered with the newer one have to stay
+			IntConsumer barrier = null;
+			for (IntConsumer pending: updates)
+				if (!newer.supersedes(pending) && !newer.commutesWith(pending))
+					barrier = pending;
+			
+			boolean behindBarrier = barrier==null;
+			for (IntConsumer pending: updates)
+				if (!behindBarrier)
+					behindBarrier = pending==barrier;
+				else
+				if (newer.supersedes(pending) && updates.remove(pending) && pending instanceof Coalescing) //not run meanwhile
+					((Coalescing)pending).superseded();
+		}
+		
+		updates.add(update);
+	}
 	
 	protected void delete() {
 		updates.clear();
-		deleteObject(name);
+		if (name!=INVALID_NAME)
+			deleteObject(name);
+		
+		name = INVALID_NAME;
 	}
 	
 	protected boolean bind(int target) {
 		if (name == INVALID_NAME)
-			name = glGenTextures();
+			name = generateObject();
 		
 		bindObject(target, name);
 
 		// first all updates, cuz Mipmap generierung is configured here before uploading, sicher-ist-sicher <- who cares!!!
 		if (!updates.isEmpty())
-			for (int updatesPending = updates.size(); updatesPending>0; updatesPending--)
-				updates.poll().accept(target);
+			for (int updatesPending = updates.size(); updatesPending>0; updatesPending--) {
+				IntConsumer update = updates.peek();
+				if (update==null) //dropped by a newer one meanwhile
+					break;
+				
+				update.accept(target);
+				if (update instanceof Resumable && !((Resumable)update).isComplete())
+					break; //stays at the head, later updates wait until it's done
+				
+				updates.remove(update); //the head, unless a newer one dropped it meanwhile
+			}
 		
 		return updates.size()==0; // up-to-date or not!
 	}
 	
 	protected <T extends GLObjectWrapper> T update(int target) {
-		if (name!=INVALID_NAME && !updates.isEmpty())
+		if (name!=INVALID_NAME && updates.isEmpty()) //nothing to do, don't touch the bindings
 			return (T)this;
 
-		int prv = getObjectBinding(target);
+		int prv = getObjectBinding(target), bound = name;
 		bind(target);
-		bindObject(target,prv);
+		bindObject(target,prv==bound?name:prv); //updates may have replaced the object under a new name
 		return (T)this;
 	}
 	
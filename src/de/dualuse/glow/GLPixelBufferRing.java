@@ -0,0 +1,146 @@
+package de.dualuse.glow;
+
+import static java.lang.Math.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <h2>Ring of Pixel Unpack Buffers for asynchronous texture uploads</h2>
+ *
+ * <pre>
+ * - stages texture uploads in GL_PIXEL_UNPACK_BUFFER objects instead of client memory
+ * - TextureSource.grab writes straight into mapped driver memory, glTex(Sub)Image2D returns right away
+ * - cycles through a number of buffers, so the driver can still read the previous ones while the next is filled
+ * - ORPHANED re-specifies the buffer store on every use and lets the driver do the bookkeeping
+ * - FENCED keeps the buffer store, maps it unsynchronized and waits for a fence set after the last upload from it
+ * - may be shared by several GLTextures of the same context, must be used on the GL thread only
+ * </pre>
+ */
+public class GLPixelBufferRing extends GLAPI {
+	static public enum Mode { ORPHANED, FENCED }
+
+	final static public int DEFAULT_SLOTS = 3;
+	final static private long WAIT_TIMEOUT = 1000000; // 1ms per glClientWaitSync round
+	final static private int UNINITIALIZED = 0;
+	final static private long NO_FENCE = 0;
+
+	final public Mode mode;
+
+	private final int[] names;
+	private final long[] fences;
+	private final int[] capacities;
+
+	private int slot = -1;
+	private ByteBuffer mapped = null;
+
+	public GLPixelBufferRing() {
+		this(DEFAULT_SLOTS, Mode.FENCED);
+	}
+
+	public GLPixelBufferRing(int slots, Mode mode) {
+		if (slots<1)
+			throw new IllegalArgumentException("At least one slot required");
+
+		this.mode = mode;
+		this.names = new int[slots];
+		this.fences = new long[slots];
+		this.capacities = new int[slots];
+	}
+
+
+	/**
+	 * Binds the next buffer of the ring to GL_PIXEL_UNPACK_BUFFER and maps the first size bytes of it for writing.
+	 * Stays bound until {@link #release()}, so glTex(Sub)Image calls in between read from it with offset 0.
+	 * @param size number of bytes to be written
+	 * @return the mapped memory, or null if mapping failed (the buffer is unbound again in that case)
+	 */
+	ByteBuffer map(int size) {
+		slot = (slot+1)%names.length;
+
+		if (names[slot]==UNINITIALIZED)
+			names[slot] = glGenBuffers();
+
+		GLState state = GLState.current();
+		state.bindBuffer(GL_PIXEL_UNPACK_BUFFER, names[slot]);
+
+		int access = GL_MAP_WRITE_BIT;
+		if (mode==Mode.ORPHANED || capacities[slot]<size) {
+			//orphan the previous store (the driver keeps it alive until pending uploads from it are done) and get a fresh one
+			capacities[slot] = max(size, capacities[slot]);
+			glBufferData(GL_PIXEL_UNPACK_BUFFER, capacities[slot], GL_STREAM_DRAW);
+			access |= GL_MAP_INVALIDATE_BUFFER_BIT;
+
+			deleteFence(slot); //fresh store, nothing to wait for
+		} else {
+			//reuse the store, but make sure the last upload from it has been consumed
+			waitFence(slot);
+			access |= GL_MAP_UNSYNCHRONIZED_BIT | GL_MAP_INVALIDATE_RANGE_BIT;
+		}
+
+		mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, size, access, mapped);
+		if (mapped==null)
+			state.bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+
+		return mapped;
+	}
+
+	/**
+	 * Unmaps the currently mapped buffer, leaves it bound for the upload calls to follow
+	 * @return false if the buffer contents got corrupted while mapped (see glUnmapBuffer), the upload needs to be repeated then
+	 */
+	boolean unmap() {
+		return glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+	}
+
+	/**
+	 * Fences the uploads issued from the current buffer and unbinds it, such that later glTex(Sub)Image calls read from client memory again
+	 */
+	void release() {
+		if (mode==Mode.FENCED)
+			fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+
+		GLState.current().bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+	}
+
+
+	private void waitFence(int slot) {
+		if (fences[slot]==NO_FENCE)
+			return;
+
+		for (int status = GL_TIMEOUT_EXPIRED; status==GL_TIMEOUT_EXPIRED; )
+			status = glClientWaitSync(fences[slot], GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT); //GL_WAIT_FAILED ends it as well
+
+		deleteFence(slot);
+	}
+
+	private void deleteFence(int slot) {
+		if (fences[slot]!=NO_FENCE)
+			glDeleteSync(fences[slot]);
+
+		fences[slot] = NO_FENCE;
+	}
+
+
+	/**
+	 * Deletes all buffers and fences, the ring may be used again afterwards and recreates them lazily
+	 */
+	public void deleteBuffers() {
+		for (int i=0;i<names.length;i++) {
+			deleteFence(i);
+
+			if (names[i]!=UNINITIALIZED) {
+				glDeleteBuffers(names[i]);
+				GLState.current().bufferDeleted(names[i]);
+			}
+
+			names[i] = UNINITIALIZED;
+			capacities[i] = 0;
+		}
+		mapped = null;
+	}
+}
@@ -59,6 +59,7 @@ public class GLProgram extends GLAPI {
 	 */
 	public void deleteProgram() {
 		glDeleteProgram(program);
+		GLState.current().programDeleted(program);
 		program = UNINITIALIZED;
 		
 		for (GLShader shader: shaders)
@@ -106,7 +107,7 @@ public class GLProgram extends GLAPI {
 		if (programHasChanged || GLGlobalUniform.globalsChangeCounter!=globalGlobalsChangeCounter)
 			resolveGloballyUpdatedUniforms();
 
-		glUseProgram(program);
+		GLState.current().useProgram(program);
 		
 		applyGlobalUpdateValues();
 
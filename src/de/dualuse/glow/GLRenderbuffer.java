@@ -17,7 +17,7 @@ class GLRenderbuffer extends GLObjectWrapper {
 	}
 	
 	@Override protected int generateObject() { return glGenRenderbuffers(); }
-	@Override protected void bindObject(int target, int name) { glBindRenderbuffer(target, name); }
-	@Override protected int getObjectBinding(int target) { return glGetInteger(GL_RENDERBUFFER_BINDING); }
-	@Override protected void deleteObject(int name) { glDeleteRenderbuffers(name); }
+	@Override protected void bindObject(int target, int name) { GLState.current().bindRenderbuffer(target, name); }
+	@Override protected int getObjectBinding(int target) { return GLState.current().getRenderbufferBinding(target); }
+	@Override protected void deleteObject(int name) { glDeleteRenderbuffers(name); GLState.current().renderbufferDeleted(name); }
 }
\ No newline at end of file
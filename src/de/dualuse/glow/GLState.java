@@ -0,0 +1,318 @@
+package de.dualuse.glow;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * <h2>Shadow copy of the GL state glow touches, one per context</h2>
+ *
+ * <pre>
+ * - shadows object bindings (per texture unit for textures), the active texture unit, the pixel store and the current program
+ * - bind and restore calls that would not change anything are skipped
+ * - values are queried from GL once when first needed, never again afterwards
+ * - code outside of glow that changes any of these needs to call {@link #invalidate()} afterwards
+ * - to be used on the thread the context is current on
+ * </pre>
+ */
+final class GLState {
+	final static int UNKNOWN = Integer.MIN_VALUE;
+
+	final static private Map<GLCapabilities,GLState> states = new WeakHashMap<>();
+	final static private ThreadLocal<GLState> local = new ThreadLocal<>();
+
+	/**
+	 * @return the state shadow of the context current on the calling thread
+	 */
+	static GLState current() {
+		GLCapabilities capabilities = GL.getCapabilities();
+
+		GLState state = local.get();
+		if (state==null || state.capabilities!=capabilities) synchronized (states) {
+			state = states.get(capabilities);
+			if (state==null)
+				states.put(capabilities, state = new GLState(capabilities));
+
+			local.set(state);
+		}
+
+		return state;
+	}
+
+	private final GLCapabilities capabilities;
+	private final Shadow bindings = new Shadow();
+	private final Shadow pixelStore = new Shadow();
+	private int activeTexture = UNKNOWN;
+	private int program = UNKNOWN;
+
+	private GLState(GLCapabilities capabilities) {
+		this.capabilities = capabilities;
+	}
+
+	/**
+	 * Forgets everything, to be called after code outside of glow changed bindings or the pixel store
+	 */
+	void invalidate() {
+		bindings.clear();
+		pixelStore.clear();
+		activeTexture = UNKNOWN;
+		program = UNKNOWN;
+	}
+
+	///////////////// Textures
+
+	void activeTexture(int texture) {
+		if (activeTexture==texture)
+			return;
+
+		glActiveTexture(activeTexture = texture);
+	}
+
+	int getActiveTexture() {
+		if (activeTexture==UNKNOWN)
+			activeTexture = glGetInteger(GL_ACTIVE_TEXTURE);
+
+		return activeTexture;
+	}
+
+	void bindTexture(int target, int name) {
+		if (bindings.put(textureKey(target), name)!=name)
+			glBindTexture(target, name);
+	}
+
+	int getTextureBinding(int target) {
+		int key = textureKey(target), name = bindings.get(key);
+		if (name==UNKNOWN)
+			bindings.put(key, name = glGetInteger(bindingForTarget(target)));
+
+		return name;
+	}
+
+	void textureDeleted(int name) {
+		bindings.replaceTextures(name, 0); //deleting a bound texture reverts the binding to 0 on all units
+	}
+
+	private int textureKey(int target) {
+		return (getActiveTexture()-GL_TEXTURE0+1)<<16 | target;
+	}
+
+	///////////////// Framebuffers & Renderbuffers
+
+	void bindFramebuffer(int target, int name) {
+		boolean draw = target!=GL_READ_FRAMEBUFFER, read = target!=GL_DRAW_FRAMEBUFFER;
+		boolean changed = draw && bindings.put(GL_DRAW_FRAMEBUFFER, name)!=name;
+		changed |= read && bindings.put(GL_READ_FRAMEBUFFER, name)!=name;
+
+		if (changed)
+			glBindFramebuffer(target, name);
+	}
+
+	int getFramebufferBinding(int target) {
+		int key = target==GL_READ_FRAMEBUFFER?GL_READ_FRAMEBUFFER:GL_DRAW_FRAMEBUFFER, name = bindings.get(key);
+		if (name==UNKNOWN)
+			bindings.put(key, name = glGetInteger(key==GL_READ_FRAMEBUFFER?GL_READ_FRAMEBUFFER_BINDING:GL_DRAW_FRAMEBUFFER_BINDING));
+
+		return name;
+	}
+
+	void framebufferDeleted(int name) {
+		bindings.replace(name, 0, GL_DRAW_FRAMEBUFFER, GL_READ_FRAMEBUFFER);
+	}
+
+	void bindRenderbuffer(int target, int name) {
+		if (bindings.put(target, name)!=name)
+			glBindRenderbuffer(target, name);
+	}
+
+	int getRenderbufferBinding(int target) {
+		int name = bindings.get(target);
+		if (name==UNKNOWN)
+			bindings.put(target, name = glGetInteger(GL_RENDERBUFFER_BINDING));
+
+		return name;
+	}
+
+	void renderbufferDeleted(int name) {
+		bindings.replace(name, 0, GL_RENDERBUFFER);
+	}
+
+	///////////////// Buffers & Vertex Arrays
+
+	void bindBuffer(int target, int name) {
+		if (bindings.put(target, name)!=name)
+			glBindBuffer(target, name);
+	}
+
+	int getBufferBinding(int target) {
+		int name = bindings.get(target);
+		if (name==UNKNOWN)
+			bindings.put(target, name = glGetInteger(bindingForTarget(target)));
+
+		return name;
+	}
+
+	void bufferDeleted(int name) {
+		bindings.replace(name, 0, BUFFER_KEYS);
+	}
+
+	void bindVertexArray(int name) {
+		if (bindings.put(GL_VERTEX_ARRAY_BINDING, name)==name)
+			return;
+
+		glBindVertexArray(name);
+		bindings.put(GL_ELEMENT_ARRAY_BUFFER, UNKNOWN); //the element array binding is part of the vertex array's state
+	}
+
+	int getVertexArrayBinding() {
+		int name = bindings.get(GL_VERTEX_ARRAY_BINDING);
+		if (name==UNKNOWN)
+			bindings.put(GL_VERTEX_ARRAY_BINDING, name = glGetInteger(GL_VERTEX_ARRAY_BINDING));
+
+		return name;
+	}
+
+	void vertexArrayDeleted(int name) {
+		if (bindings.get(GL_VERTEX_ARRAY_BINDING)==name) {
+			bindings.put(GL_VERTEX_ARRAY_BINDING, 0);
+			bindings.put(GL_ELEMENT_ARRAY_BUFFER, UNKNOWN);
+		}
+	}
+
+	///////////////// Program
+
+	void useProgram(int program) {
+		if (this.program==program)
+			return;
+
+		glUseProgram(this.program = program);
+	}
+
+	int getProgram() {
+		if (program==UNKNOWN)
+			program = glGetInteger(GL_CURRENT_PROGRAM);
+
+		return program;
+	}
+
+	void programDeleted(int program) {
+		if (this.program==program) //stays in use until another one is, but its name may be handed out again
+			this.program = UNKNOWN;
+	}
+
+	///////////////// Pixel Store
+
+	void pixelStore(int pname, int param) {
+		if (pixelStore.put(pname, param)!=param)
+			glPixelStorei(pname, param);
+	}
+
+	int getPixelStore(int pname) {
+		int param = pixelStore.get(pname);
+		if (param==UNKNOWN)
+			pixelStore.put(pname, param = glGetInteger(pname));
+
+		return param;
+	}
+
+	///////////////////////////////
+
+	final static private int[] BUFFER_KEYS = { GL_ARRAY_BUFFER, GL_ELEMENT_ARRAY_BUFFER, GL_PIXEL_UNPACK_BUFFER, GL_PIXEL_PACK_BUFFER };
+
+	static int bindingForTarget(int target) {
+		switch (target) {
+		case GL_TEXTURE_1D: return GL_TEXTURE_BINDING_1D;
+		case GL_TEXTURE_2D: return GL_TEXTURE_BINDING_2D;
+		case GL_TEXTURE_3D: return GL_TEXTURE_BINDING_3D;
+		case GL_TEXTURE_2D_ARRAY: return GL_TEXTURE_BINDING_2D_ARRAY;
+
+		case GL_ARRAY_BUFFER: return GL_ARRAY_BUFFER_BINDING;
+		case GL_ELEMENT_ARRAY_BUFFER: return GL_ELEMENT_ARRAY_BUFFER_BINDING;
+		case GL_PIXEL_UNPACK_BUFFER: return GL_PIXEL_UNPACK_BUFFER_BINDING;
+		case GL_PIXEL_PACK_BUFFER: return GL_PIXEL_PACK_BUFFER_BINDING;
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * int to int map with open addressing, absent keys map to UNKNOWN
+	 */
+	static private class Shadow {
+		private int[] keys = new int[32], values = new int[32];
+		private int size = 0;
+
+		private int slot(int key) {
+			int mask = keys.length-1, i = (key*0x9E3779B9>>>16)&mask;
+			while (keys[i]!=0 && keys[i]!=key)
+				i = (i+1)&mask;
+
+			return i;
+		}
+
+		int get(int key) {
+			int i = slot(key);
+			return keys[i]==key?values[i]:UNKNOWN;
+		}
+
+		//returns the previous value
+		int put(int key, int value) {
+			int i = slot(key);
+			if (keys[i]==key) {
+				int previous = values[i];
+				values[i] = value;
+				return previous;
+			}
+
+			if (size*2>=keys.length) {
+				grow();
+				return put(key, value);
+			}
+
+			keys[i] = key;
+			values[i] = value;
+			size++;
+			return UNKNOWN;
+		}
+
+		//replaces the value of the given keys if they map to value
+		void replace(int value, int replacement, int... keys) {
+			for (int key: keys)
+				if (get(key)==value)
+					put(key, replacement);
+		}
+
+		//same for all texture keys, that carry their unit in the upper 16 bits
+		void replaceTextures(int value, int replacement) {
+			for (int i=0;i<keys.length;i++)
+				if (keys[i]>>>16!=0 && values[i]==value)
+					values[i] = replacement;
+		}
+
+		private void grow() {
+			int[] keys = this.keys, values = this.values;
+			this.keys = new int[keys.length*2];
+			this.values = new int[values.length*2];
+			size = 0;
+
+			for (int i=0;i<keys.length;i++)
+				if (keys[i]!=0)
+					put(keys[i], values[i]);
+		}
+
+		void clear() {
+			Arrays.fill(keys, 0);
+			size = 0;
+		}
+	}
+}
@@ -1,41 +1,335 @@
 package de.dualuse.glow;
 
 import static java.lang.Math.*;
+import static org.lwjgl.opengl.ARBTextureCompressionBPTC.*;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL14.*;
+import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL41.*;
+import static org.lwjgl.opengl.GL42.*;
+import static org.lwjgl.opengl.GL43.*;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.IntConsumer;
 
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
 
 public class GLTexture extends GLObjectWrapper {
 
 	@Override protected int generateObject() { return glGenTextures(); }
-	@Override protected void bindObject(int target, int name) { glBindTexture(target, name); }
-	@Override protected int getObjectBinding(int target) { return glGetInteger(bindingForTarget(target)); }
-	@Override protected void deleteObject(int name) { glDeleteTextures(name); }
+	@Override protected void bindObject(int target, int name) { GLState.current().bindTexture(target, name); }
+	@Override protected int getObjectBinding(int target) { return GLState.current().getTextureBinding(target); }
+	@Override protected void deleteObject(int name) { glDeleteTextures(name); GLState.current().textureDeleted(name); forgetLevels(); }
+	
+	private interface TextureUpdate extends Coalescing {
+		@Override default boolean supersedes(IntConsumer pending) { return false; }
+	};
 	
-	private interface TextureUpdate extends IntConsumer {};
-	public interface TextureParameter extends TextureUpdate {};
-	public boolean bindTexture(int target) { return bind(target); }
-	public void deleteTexture() { delete(); }
+	public interface TextureParameter extends TextureUpdate {
+		/**
+		 * @return the parameter written by this update, 0 if it writes several or unknown ones, such that it is never dropped for a newer one
+		 */
+		default int getParameterName() { return 0; }
+		default boolean writes(int pname) { return pname!=0 && pname==getParameterName(); }
+		
+		@Override default boolean supersedes(IntConsumer pending) { 
+			return pending instanceof TextureParameter && writes(((TextureParameter)pending).getParameterName()); 
+		}
+		
+		@Override default boolean commutesWith(IntConsumer between) { //mipmap generation and the base level apply to the uploads in between
+			return between instanceof TextureParameter || !writes(GL_GENERATE_MIPMAP) && !writes(GL_TEXTURE_BASE_LEVEL);
+		}
+	};
 	
+	static private class TexParameter implements TextureParameter {
+		final int pname;
+		final IntConsumer write;
+		
+		TexParameter(int pname, IntConsumer write) { this.pname = pname; this.write = write; }
+		
+		@Override public int getParameterName() { return pname; }
+		@Override public void accept(int target) { write.accept(target); }
+	}
 	
-	private static int bindingForTarget(int target) {
-		switch (target) {
-		case GL_TEXTURE_1D: return GL_TEXTURE_BINDING_1D;
-		case GL_TEXTURE_2D: return GL_TEXTURE_BINDING_2D;
-		case GL_TEXTURE_3D: return GL_TEXTURE_BINDING_3D;
-		default: 
-			throw new IllegalArgumentException();
+	/**
+	 * a pending upload into a level, a newer definition of the level supersedes all pending uploads into it, 
+	 * a newer replacement of a part all pending replacements within that part. 
+	 * Throttled uploads keep track of their progress and stay at the head of the queue until they are complete.
+	 * Uploads into 3D and array textures go slice by slice, each slice like a 2D upload
+	 */
+	private class Upload implements TextureUpdate, Resumable {
+		final int level, internalformat, x, y, z, width, height, depth, skipX, skipY, skipZ;
+		final boolean define;
+		final TextureSource src; //the source of a 2D upload, the first slice of a 3D upload
+		final SlicedTextureSource volume; //null for 2D uploads
+		final int blockWidth, blockHeight; //1 x 1 for uncompressed sources, lines are rows of blocks otherwise 
+		
+		//immutable storage allocated for this definition, if it's the first one of the texture that is possible for
+		private int storageLevels = 0, storageWidth, storageHeight;
+		
+		//progress of throttled uploads, split into tiles of the region that is actually uploaded, slice after slice
+		private int regionWidth, regionHeight, regionDepth, tileWidth, tileHeight, columns, tilesPerSlice, tiles = 0, nextTile = -1; //not started yet
+		
+		Upload(int level, int internalformat, boolean define, int x, int y, int width, int height, TextureSource src, int skipX, int skipY) {
+			this(level, internalformat, define, x, y, -1, width, height, 1, src, null, skipX, skipY, 0);
+		}
+		
+		/**
+		 * @param z the first slice of the texture uploaded into, -1 for 2D uploads
+		 * @param skipZ the first slice of volume uploaded from
+		 */
+		Upload(int level, int internalformat, boolean define, int x, int y, int z, int width, int height, int depth, TextureSource src, SlicedTextureSource volume, int skipX, int skipY, int skipZ) {
+			this.level = level; this.internalformat = internalformat; this.define = define;
+			this.x = x; this.y = y; this.z = z; this.width = width; this.height = height; this.depth = depth;
+			this.src = src; this.volume = volume;
+			this.skipX = skipX; this.skipY = skipY; this.skipZ = skipZ;
+			
+			boolean compressed = src instanceof CompressedTextureSource;
+			this.blockWidth = compressed?((CompressedTextureSource)src).getBlockWidth():1;
+			this.blockHeight = compressed?((CompressedTextureSource)src).getBlockHeight():1;
+		}
+		
+		private int bytesPerLine(int w, int alignment) {
+			return src instanceof CompressedTextureSource?((CompressedTextureSource)src).getBytesPerLine(w):pad(src.getDepth()/8*w, alignment);
+		}
+		
+		private int bytes(int w, int h, int alignment) {
+			return bytesPerLine(w, alignment)*((h+blockHeight-1)/blockHeight);
+		}
+		
+		Upload withStorage(int levels, int width, int height) {
+			this.storageLevels = levels; this.storageWidth = width; this.storageHeight = height;
+			return this;
+		}
+		
+		/**
+		 * @return whether the level needs to be defined, false if it's defined with the same format and size already, 
+		 * or got so by allocating immutable storage
+		 */
+		private boolean allocate(int target) {
+			int format = src instanceof CompressedTextureSource?src.getFormat():internalformat;
+			if (!define || isDefined(level, format, width, height, depth))
+				return false;
+			
+			if (immutable) //can't be redefined, start over with a fresh texture object
+				recreate(target);
+			
+			if (storageLevels>0 && z<0 && texStorage2D(target, storageLevels, format, storageWidth, storageHeight) && isDefined(level, format, width, height, depth))
+				return false;
+			
+			defined(level, format, width, height, depth);
+			return true;
+		}
+		
+		private TextureSource slice(int n) {
+			return volume==null?src:volume.getSlice(skipZ+n);
+		}
+		
+		private int zoffset(int n) {
+			return z<0?-1:z+n;
+		}
+		
+		//defines the level without filling it, the tiles are uploaded into it later on
+		private void defineEmpty(int target) {
+			if (z>=0 && src==null)
+				glTexImage3D(target, level, internalformat, width, height, depth, 0, GL_LUMINANCE, GL_UNSIGNED_BYTE, 0L);
+			else
+			if (z>=0 && src instanceof CompressedTextureSource)
+				glCompressedTexImage3D(target, level, src.getFormat(), width, height, depth, 0, bytes(width, height, 1)*depth, 0L);
+			else
+			if (z>=0)
+				glTexImage3D(target, level, internalformat, width, height, depth, 0, src.getFormat(), src.getType(), 0L);
+			else
+			if (src==null)
+				glTexImage2D(target, level, internalformat, width, height, 0, GL_LUMINANCE, GL_UNSIGNED_BYTE, 0);
+			else
+			if (src instanceof CompressedTextureSource)
+				glCompressedTexImage2D(target, level, src.getFormat(), width, height, 0, bytes(width, height, 1), 0L);
+			else
+				glTexImage2D(target, level, internalformat, width, height, 0, src.getFormat(), src.getType(), 0); //does not fill texture with zeros!
+		}
+		
+		@Override public boolean isComplete() { 
+			return nextTile>=tiles; 
+		}
+		
+		//a fresh copy uploading from the original source, to restore the texture from 
+		Upload restart() {
+			TextureSource original = src instanceof TexturePrefetcher.Prefetch?((TexturePrefetcher.Prefetch)src).source:src; 
+			return new Upload(level, internalformat, define, x, y, z, width, height, depth, original, volume, skipX, skipY, skipZ).withStorage(storageLevels, storageWidth, storageHeight);
+		}
+		
+		@Override public void accept(int target) {
+			if (nextTile<0)
+				start(target);
+			else
+				resume(target);
+		}
+		
+		@Override public boolean supersedes(IntConsumer pending) {
+			if (!(pending instanceof Upload))
+				return false;
+			
+			Upload p = (Upload)pending;
+			return p.level==level && (define || !p.define && x<=p.x && y<=p.y && z<=p.z && p.x+p.width<=x+width && p.y+p.height<=y+height && p.z+p.depth<=z+depth);
+		}
+		
+		@Override public boolean commutesWith(IntConsumer between) { //mipmap generation and the base level read what was uploaded before them
+			if (between==GENERATE_MIPMAP)
+				return false;
+			
+			return !(between instanceof TextureParameter) || !((TextureParameter)between).writes(GL_GENERATE_MIPMAP) && !((TextureParameter)between).writes(GL_TEXTURE_BASE_LEVEL);
+		}
+		
+		@Override public void superseded() {
+			if (src instanceof TexturePrefetcher.Prefetch)
+				((TexturePrefetcher.Prefetch)src).cancel();
+		}
+		
+		private void start(int target) {
+			nextTile = 0; //complete, unless tiles are left over below
+			
+			if (src==null) { //just allocate the texture memory
+				if (allocate(target))
+					defineEmpty(target);
+				return;
+			}
+			
+			if (isSuperseded(src))
+				return;
+			
+			boolean define = allocate(target); //replace the contents only, if the level is of that format and size already 
+			
+			//determine actual size of pixel area to upload (texImage2D calls may request a bigger size than the texture source provides) 
+			regionWidth = min(width, src.getWidth()-skipX);
+			regionHeight = min(height, src.getHeight()-skipY);
+			regionDepth = volume==null?depth:min(depth, volume.getSlices()-skipZ);
+			
+			//retrieve the currently set alignment value from the state shadow (queried from GL only once per context)
+			int alignment = GLState.current().getPixelStore(GL_UNPACK_ALIGNMENT);
+			
+			int paddedBytesPerLine = bytesPerLine(regionWidth, alignment); //compute the size of a line with alignment in mind (paddedBytesPerLine = pad(13,4) = 16)
+
+			//compute the actual bufferSize needed to upload the portion of the source image with padded linesize in mind  
+			int requestedBufferSize = bytes(regionWidth, regionHeight, alignment)*regionDepth; 
+			int allowedBufferSize = (int) flowController.allocate( requestedBufferSize ); //find out how many bytes the throttling system allows us to actually upload
+
+			//in case this is (more than) enough to upload texture in one blow
+			if (allowedBufferSize>=requestedBufferSize) {
+				//if the uploaded texture image is smaller than the requested texture size, or consists of slices
+				if (define && (regionWidth<width || regionHeight<height || z>=0)) { //initialize the texture in memory, then upload subimages
+					defineEmpty(target);
+					for (int n=0;n<regionDepth;n++) 
+						upload(target, level, internalformat, false, x, y, zoffset(n), regionWidth, regionHeight, slice(n), skipX, skipY, paddedBytesPerLine); //then upload just that
+				} else
+				for (int n=0;n<regionDepth;n++) 
+					//initialize and upload the texture, or replace the section, in one blow 
+					upload(target, level, internalformat, define, x, y, zoffset(n), regionWidth, regionHeight, slice(n), skipX, skipY, paddedBytesPerLine);
+				
+				return;
+			}
+			
+			if (define) //initialize the texture, the tiles are uploaded into it as far as the allowance goes, now and during the next binds
+				defineEmpty(target);
+			
+			//tiles are tileSize x tileSize (clipped at the region's edges, whole blocks), or full width lines for tileSize 0
+			tileWidth = tileSize>0?min(max(blockWidth, tileSize/blockWidth*blockWidth), regionWidth):regionWidth; 
+			tileHeight = tileSize>0?min(max(blockHeight, tileSize/blockHeight*blockHeight), regionHeight):min(blockHeight, regionHeight);
+			columns = (regionWidth+tileWidth-1)/tileWidth;
+			tilesPerSlice = columns*((regionHeight+tileHeight-1)/tileHeight);
+			tiles = tilesPerSlice*regionDepth;
+			
+			uploadTiles(target, allowedBufferSize, alignment);
+		}
+		
+		private void resume(int target) {
+			if (isSuperseded(src)) {
+				nextTile = tiles;
+				return;
+			}
+			
+			int alignment = GLState.current().getPixelStore(GL_UNPACK_ALIGNMENT);
+			double remainingBytes = (double)(tiles-nextTile)*bytes(tileWidth, tileHeight, alignment); //slightly overestimated for clipped tiles
+			uploadTiles(target, (int) flowController.allocate(remainingBytes), alignment);
 		}
+		
+		/**
+		 * uploads at least one tile, then as many whole tiles as the allowance covers. Adjacent tiles of a row are 
+		 * uploaded in one go, as are adjacent lines of a slice.
+		 */
+		private void uploadTiles(int target, int allowance, int alignment) {
+			int rows = tilesPerSlice/columns, tileBytes = bytes(tileWidth, tileHeight, alignment);
+			
+			for (int budget = allowance, first = nextTile; nextTile<tiles && budget>0 && (nextTile==first || budget>=tileBytes); ) {
+				int slice = nextTile/tilesPerSlice, column = nextTile%tilesPerSlice%columns, row = nextTile%tilesPerSlice/columns;
+				int n = max(1, budget/tileBytes); //at least one tile, then as many whole tiles as fit
+				
+				int tx = column*tileWidth, ty = row*tileHeight, w, h;
+				if (columns==1) { //whole lines, span as many rows as we can
+					n = min(n, rows-row);
+					w = regionWidth;
+					h = min(n*tileHeight, regionHeight-ty);
+				} else { //span the tiles of this row
+					n = min(n, columns-column);
+					w = min(n*tileWidth, regionWidth-tx);
+					h = min(tileHeight, regionHeight-ty);
+				}
+				
+				upload(target, level, internalformat, false, x+tx, y+ty, zoffset(slice), w, h, slice(slice), skipX+tx, skipY+ty, bytesPerLine(w, alignment));
+				
+				budget -= bytes(w, h, alignment);
+				nextTile += n;
+			}
+		}
+	}
+	
+	public boolean bindTexture(int target) { 
+		GLTextureResidency residency = this.residency;
+		if (residency==null)
+			return bind(target);
+		
+		residency.binding(this);
+		boolean done = bind(target);
+		residency.bound(this);
+		return done;
+	}
+	
+	//run by GLUploadScheduler, restores the texture if evicted like bindTexture
+	@Override @SuppressWarnings("unchecked")
+	protected <T extends GLObjectWrapper> T update(int target) {
+		GLTextureResidency residency = this.residency;
+		if (residency==null)
+			return super.update(target);
+		
+		residency.binding(this);
+		super.update(target);
+		residency.bound(this);
+		return (T)this;
+	}
+	
+	public void deleteTexture() { 
+		GLTextureResidency residency = this.residency;
+		if (residency!=null)
+			residency.deleted(this);
+		
+		cancelPrefetches(); 
+		delete(); 
 	}
 	
+	
 	///////////////// Constructors ///////////////////////////
 	
 	public GLTexture() { }
@@ -68,6 +362,379 @@ public class GLTexture extends GLObjectWrapper {
 		return this;
 	}
 
+	volatile GLUploadScheduler.Entry scheduling = null;
+	
+	/**
+	 * have the pending uploads of this texture run by the given scheduler at frame boundaries, whether it's bound or not.
+	 * Replaces the FlowControl with the scheduler's per frame budget, null resets to unthrottled uploads when bound
+	 * @param target the target to bind the texture to for uploading
+	 * @param priority uploads of higher priority go first, unless others are overdue 
+	 * @param maxDelayMillis time after sending an upload it becomes overdue
+	 */
+	public GLTexture setScheduler(GLUploadScheduler scheduler, int target, int priority, long maxDelayMillis) {
+		if (scheduler==null) {
+			scheduling = null;
+			flowController = requested -> requested;
+			return this;
+		}
+		
+		scheduling = scheduler.register(this, target, priority, maxDelayMillis);
+		flowController = scheduler.flow;
+		
+		if (!updates.isEmpty())
+			scheduling.submit();
+		
+		return this;
+	}
+	
+	public GLTexture setScheduler(GLUploadScheduler scheduler, int target) {
+		return setScheduler(scheduler, target, 0, GLUploadScheduler.DEFAULT_MAX_DELAY_MILLIS);
+	}
+	
+	//hands a freshly sent upload to the scheduler, or warms up the flow controller otherwise
+	private GLTexture sent() {
+		GLUploadScheduler.Entry scheduling = this.scheduling;
+		if (scheduling!=null)
+			scheduling.submit();
+		else
+			flowController.allocate(Double.POSITIVE_INFINITY); //warm up the flow controller
+		
+		return this;
+	}
+	
+	private int tileSize = 0;
+	
+	/**
+	 * split throttled uploads into tiles of tileSize x tileSize pixels instead of full width lines, such that the granularity 
+	 * of partial uploads is bounded whatever the image's aspect ratio (a single line of a 16k wide image is 64kB already) 
+	 * @param tileSize edge length of a tile in pixels, 0 for full width lines
+	 */
+	public GLTexture setTileSize(int tileSize) {
+		this.tileSize = tileSize;
+		return this;
+	}
+	
+	private StagingBufferPool stagingBuffers = StagingBufferPool.DEFAULT;
+	
+	/**
+	 * stage uploads in direct buffers from the given pool, uploads from different threads never contend for them
+	 * @param pool may be shared with other GLTextures, defaults to {@link StagingBufferPool#DEFAULT}
+	 */
+	public GLTexture setStagingBuffers(StagingBufferPool pool) {
+		stagingBuffers = pool;
+		return this;
+	}
+	
+	private GLPixelBufferRing pixelBuffers = null;
+
+	/**
+	 * stage uploads in the given ring of pixel unpack buffers instead of the client side staging buffers, null to switch back
+	 * @param ring may be shared with other GLTextures of the same context
+	 */
+	public GLTexture setPixelBuffers(GLPixelBufferRing ring) {
+		pixelBuffers = ring;
+		return this;
+	}
+
+	final static public int ALL_LEVELS = 32;
+	private volatile int storageLevels = 0;
+	
+	/**
+	 * allocate the texture with immutable storage of all its levels at once (glTexStorage2D) when level 0 is defined, if the context 
+	 * supports it and the internal format has a sized equivalent. Definitions of the same format and size just replace the contents then,
+	 * a different format or size gets a new texture object, to which the parameters sent so far are sent again.
+	 * Set it before sending parameters, such that they are kept track of 
+	 * @param levels number of levels to allocate, ALL_LEVELS for a full mipmap chain, 0 for mutable storage redefined level by level
+	 */
+	public GLTexture setImmutableStorage(int levels) {
+		storageLevels = levels;
+		return this;
+	}
+	
+	//what the levels of the GL object are defined as so far, {format, width, height, depth}, touched on the GL thread only  
+	private final int[][] definitions = new int[ALL_LEVELS][];
+	private boolean immutable = false;
+	
+	private boolean isDefined(int level, int internalformat, int width, int height, int depth) {
+		int[] defined = definitions[level];
+		return defined!=null && defined[0]==internalformat && defined[1]==width && defined[2]==height && defined[3]==depth;
+	}
+	
+	private void defined(int level, int internalformat, int width, int height, int depth) {
+		definitions[level] = new int[] { internalformat, width, height, depth };
+	}
+	
+	private void forgetLevels() {
+		Arrays.fill(definitions, null);
+		immutable = false;
+	}
+	
+	private boolean texStorage2D(int target, int levels, int internalformat, int width, int height) {
+		GLCapabilities caps = GL.getCapabilities();
+		int sized = sizedInternalFormat(internalformat);
+		if (sized==0 || !caps.OpenGL42 && !caps.GL_ARB_texture_storage)
+			return false;
+		
+		levels = min(levels, 32-Integer.numberOfLeadingZeros(max(width, height)));
+		glTexStorage2D(target, levels, sized, width, height);
+		
+		immutable = true;
+		Arrays.fill(definitions, null); //levels past the chain are gone
+		for (int level=0;level<levels;level++)
+			defined(level, internalformat, max(1, width>>level), max(1, height>>level), 1);
+		
+		return true;
+	}
+	
+	//the sized format storage is allocated with for an unsized one, 0 for formats only mutable storage can have 
+	static int sizedInternalFormat(int internalformat) {
+		switch (internalformat) {
+		case GL_RED: return GL_R8;
+		case GL_RG: return GL_RG8;
+		case GL_RGB: return GL_RGB8;
+		case GL_RGBA: return GL_RGBA8;
+		
+		case GL_R8: case GL_R8_SNORM: case GL_R16: case GL_R16_SNORM: case GL_R16F: case GL_R32F: 
+		case GL_R8I: case GL_R8UI: case GL_R16I: case GL_R16UI: case GL_R32I: case GL_R32UI:
+		case GL_RG8: case GL_RG8_SNORM: case GL_RG16: case GL_RG16_SNORM: case GL_RG16F: case GL_RG32F: 
+		case GL_RG8I: case GL_RG8UI: case GL_RG16I: case GL_RG16UI: case GL_RG32I: case GL_RG32UI:
+		case GL_R3_G3_B2: case GL_RGB4: case GL_RGB5: case GL_RGB565: case GL_RGB8: case GL_RGB8_SNORM: case GL_RGB10: case GL_RGB12: 
+		case GL_RGB16: case GL_RGB16_SNORM: case GL_RGB16F: case GL_RGB32F: case GL_R11F_G11F_B10F: case GL_RGB9_E5: case GL_SRGB8:
+		case GL_RGB8I: case GL_RGB8UI: case GL_RGB16I: case GL_RGB16UI: case GL_RGB32I: case GL_RGB32UI:
+		case GL_RGBA2: case GL_RGBA4: case GL_RGB5_A1: case GL_RGBA8: case GL_RGBA8_SNORM: case GL_RGB10_A2: case GL_RGB10_A2UI: case GL_RGBA12: 
+		case GL_RGBA16: case GL_RGBA16_SNORM: case GL_RGBA16F: case GL_RGBA32F: case GL_SRGB8_ALPHA8:
+		case GL_RGBA8I: case GL_RGBA8UI: case GL_RGBA16I: case GL_RGBA16UI: case GL_RGBA32I: case GL_RGBA32UI:
+		case GL_DEPTH_COMPONENT16: case GL_DEPTH_COMPONENT24: case GL_DEPTH_COMPONENT32: case GL_DEPTH_COMPONENT32F: 
+		case GL_DEPTH24_STENCIL8: case GL_DEPTH32F_STENCIL8:
+			
+		case GL_COMPRESSED_RED_RGTC1: case GL_COMPRESSED_SIGNED_RED_RGTC1: case GL_COMPRESSED_RG_RGTC2: case GL_COMPRESSED_SIGNED_RG_RGTC2:
+		case GL_COMPRESSED_RGB_S3TC_DXT1_EXT: case GL_COMPRESSED_RGBA_S3TC_DXT1_EXT: case GL_COMPRESSED_RGBA_S3TC_DXT3_EXT: case GL_COMPRESSED_RGBA_S3TC_DXT5_EXT:
+		case GL_COMPRESSED_RGBA_BPTC_UNORM_ARB: case GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM_ARB: 
+		case GL_COMPRESSED_RGB_BPTC_SIGNED_FLOAT_ARB: case GL_COMPRESSED_RGB_BPTC_UNSIGNED_FLOAT_ARB:
+		case GL_COMPRESSED_RGB8_ETC2: case GL_COMPRESSED_SRGB8_ETC2: case GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2: case GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+		case GL_COMPRESSED_RGBA8_ETC2_EAC: case GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC: 
+		case GL_COMPRESSED_R11_EAC: case GL_COMPRESSED_SIGNED_R11_EAC: case GL_COMPRESSED_RG11_EAC: case GL_COMPRESSED_SIGNED_RG11_EAC:
+			return internalformat;
+			
+		default: //unsized, legacy or generic compressed formats, e.g. 3, 4, GL_LUMINANCE, GL_SRGB, GL_COMPRESSED_RGBA or GL_DEPTH_STENCIL 
+			return 0;
+		}
+	}
+	
+	//deletes the immutable GL object, such that the next definition starts over with a fresh one, of the same parameters
+	private void recreate(int target) {
+		deleteObject(name);
+		name = generateObject();
+		bindObject(target, name);
+		
+		synchronized (restorable) {
+			for (TextureUpdate u: restorable)
+				if (u instanceof TextureParameter)
+					u.accept(target);
+		}
+	}
+	
+	volatile GLTextureResidency residency = null;
+	private final ArrayList<TextureUpdate> restorable = new ArrayList<>(); //definitions and parameters to restore an evicted texture
+	private boolean evicted = false;
+	
+	/**
+	 * have the texture's video memory accounted for by the given residency manager, that evicts it when it wasn't bound for 
+	 * a while and the budget is exceeded, and restores it from its sources when it's bound again. 
+	 * Keeps references to the sources of all levels, null to stop managing the texture
+	 */
+	public GLTexture setResidency(GLTextureResidency residency) {
+		GLTextureResidency previous = this.residency;
+		if (previous!=null)
+			previous.deleted(this);
+		
+		this.residency = residency;
+		synchronized (restorable) {
+			restorable.clear();
+			if (residency!=null)
+				for (IntConsumer pending: updates)
+					record(pending);
+		}
+		
+		return this;
+	}
+	
+	@Override protected void enqueue(IntConsumer update) {
+		super.enqueue(update);
+		if (residency!=null || storageLevels>0 && update instanceof TextureParameter) synchronized (restorable) {
+			record(update); //parameters to recreate an immutable texture with
+		}
+	}
+	
+	private void record(IntConsumer update) {
+		TextureUpdate restoring;
+		if (update instanceof Upload && ((Upload)update).define)
+			restoring = ((Upload)update).restart();
+		else
+		if (update instanceof TextureParameter || update==GENERATE_MIPMAP)
+			restoring = (TextureUpdate)update;
+		else
+			return;
+		
+		for (Iterator<TextureUpdate> i = restorable.iterator(); i.hasNext(); ) {
+			TextureUpdate recorded = i.next();
+			if (recorded==restoring || restoring.supersedes(recorded))
+				i.remove();
+		}
+		
+		restorable.add(restoring);
+	}
+	
+	//deletes the GL object if there's nothing pending, such that it's restored on the next bind
+	boolean evict() {
+		if (!updates.isEmpty())
+			return false;
+		
+		if (name!=INVALID_NAME)
+			deleteObject(name);
+		
+		cancelPrefetches(); //of uploads partly consumed, if any, restored from the sources
+		name = INVALID_NAME;
+		evicted = true;
+		return true;
+	}
+	
+	//puts the recorded definitions and parameters ahead of the updates sent while evicted, if evicted
+	boolean restore() {
+		if (!evicted)
+			return false;
+		
+		evicted = false;
+		ArrayList<IntConsumer> pending = new ArrayList<>(); //sub images sent while evicted go on top of the restored levels
+		for (IntConsumer u = updates.poll(); u!=null; u = updates.poll())
+			pending.add(u);
+		
+		synchronized (restorable) {
+			restoring: for (TextureUpdate u: restorable) {
+				for (IntConsumer p: pending)
+					if (p instanceof Coalescing && ((Coalescing)p).supersedes(u))
+						continue restoring; //redefined while evicted
+				
+				updates.add(u instanceof Upload?((Upload)u).restart():u);
+			}
+		}
+		
+		updates.addAll(pending);
+		return true;
+	}
+	
+	/**
+	 * @return the video memory of the levels defined so far, as far as they are known to a residency manager
+	 */
+	public long getEstimatedSize() {
+		long size = 0;
+		synchronized (restorable) {
+			for (TextureUpdate u: restorable)
+				if (u instanceof Upload) {
+					Upload up = (Upload)u;
+					int bytesPerBlock = bytesPerBlock(up.internalformat);
+					if (bytesPerBlock>0) //4x4 blocks
+						size += (long)((up.width+3)/4)*((up.height+3)/4)*up.depth*bytesPerBlock;
+					else
+						size += (long)up.width*up.height*up.depth*bytesPerTexel(up.internalformat);
+				}
+		}
+		
+		return size;
+	}
+	
+	//of the 4x4 blocks of compressed internal formats, 0 for uncompressed ones
+	static int bytesPerBlock(int internalformat) {
+		switch (internalformat) {
+		case GL_COMPRESSED_RGB_S3TC_DXT1_EXT:
+		case GL_COMPRESSED_RGBA_S3TC_DXT1_EXT:
+		case GL_COMPRESSED_RGB8_ETC2: return 8;
+		
+		case GL_COMPRESSED_RGBA_S3TC_DXT3_EXT:
+		case GL_COMPRESSED_RGBA_S3TC_DXT5_EXT:
+		case GL_COMPRESSED_RGBA_BPTC_UNORM_ARB:
+		case GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM_ARB:
+		case GL_COMPRESSED_RGBA8_ETC2_EAC: return 16;
+		
+		default:
+			return 0;
+		}
+	}
+	
+	static int bytesPerTexel(int internalformat) {
+		switch (internalformat) {
+		case GL_ALPHA: 
+		case GL_LUMINANCE: 
+		case GL_RED: 
+		case GL_R8: return 1;
+		
+		case GL_LUMINANCE_ALPHA: 
+		case GL_RG: 
+		case GL_RG8: 
+		case GL_R16F: return 2;
+		
+		case GL_RGBA16F: 
+		case GL_RG32F: return 8;
+		
+		case GL_RGBA32F: return 16;
+		
+		default: //GL_RGB(A)(8), drivers pad RGB to 4 bytes anyway 
+			return 4;
+		}
+	}
+	
+	
+	private TexturePrefetcher prefetcher = null;
+	private final Queue<LevelPrefetch> prefetches = new ConcurrentLinkedQueue<>();
+	
+	private static class LevelPrefetch {
+		final int level;
+		final TexturePrefetcher.Prefetch prefetch;
+		LevelPrefetch(int level, TexturePrefetcher.Prefetch prefetch) { this.level = level; this.prefetch = prefetch; }
+	}
+	
+	/**
+	 * have sources grabbed (and converted) by the prefetcher's workers as soon as an upload is sent, instead of during bind
+	 * @param prefetcher may be shared with other GLTextures, null to switch back to grabbing on the GL thread
+	 */
+	public GLTexture setPrefetcher(TexturePrefetcher prefetcher) {
+		this.prefetcher = prefetcher;
+		return this;
+	}
+	
+	//cancels the pending prefetches of a level that is about to be redefined and starts prefetching the new region  
+	private TextureSource prefetch(int level, boolean supersede, TextureSource src, int x, int y, int width, int height) {
+
+		for (Iterator<LevelPrefetch> i = prefetches.iterator(); i.hasNext(); ) {
+			LevelPrefetch lp = i.next();
+			if (supersede && lp.level==level)
+				lp.prefetch.cancel();
+			
+			if (lp.prefetch.isDone())
+				i.remove();
+		}
+		
+		TexturePrefetcher prefetcher = this.prefetcher;
+		boolean convert = !(src instanceof CompressedTextureSource || src instanceof DirectTextureSource); //nothing to convert, no point in staging them
+		TexturePrefetcher.Prefetch p = prefetcher==null || !convert?null:prefetcher.prefetch(src, x, y, width, height);
+		if (p==null)
+			return src;
+		
+		prefetches.add(new LevelPrefetch(level, p));
+		return p;
+	}
+	
+	private void cancelPrefetches() {
+		for (LevelPrefetch lp: prefetches)
+			lp.prefetch.cancel();
+		
+		prefetches.clear();
+	}
+	
+	static private boolean isSuperseded(TextureSource src) {
+		return src instanceof TexturePrefetcher.Prefetch && ((TexturePrefetcher.Prefetch)src).isCancelled();
+	}
+	
 	
 	static int internalFormatForFormat( int format ) {
 		switch (format) {
@@ -89,15 +756,6 @@ public class GLTexture extends GLObjectWrapper {
 	}
 	
 	
-	static final private int INITIAL_TRANSFER_BUFFER_CAPACITY = 10*1024*1024; // 10MB
-	
-	static private ByteBuffer transferBuffer = ByteBuffer.allocateDirect(INITIAL_TRANSFER_BUFFER_CAPACITY).order(ByteOrder.nativeOrder()); 
-	static private void ensureTransferBufferCapacity(int minimumTransferBufferCapacity) {
-		transferBuffer.clear();
-		if (transferBuffer.capacity()<minimumTransferBufferCapacity) //allocate a way bigger buffer in case its too small 
-			transferBuffer = ByteBuffer.allocateDirect( minimumTransferBufferCapacity*3/2 ).order(ByteOrder.nativeOrder());
-	}
-	
 	static private int pad(int value, int granularity) {
 		return (value+granularity-1)/granularity*granularity;
 	}
@@ -112,15 +770,19 @@ public class GLTexture extends GLObjectWrapper {
 	 * @param src
 	 */
 	public GLTexture sendTexImage2D(int level, int internalformat, int textureWidth, int textureHeight, TextureSource src) {
-		flowController.allocate(Double.POSITIVE_INFINITY); //warm up the flow controller
-		updates.add( target -> texImage2D(target, level, internalformat, textureWidth, textureHeight, src) );
-		return this;
+		return sendTexImage2D(level, internalformat, textureWidth, textureHeight, src, level==0?storageLevels:0, textureWidth, textureHeight);
+	}
+	
+	//a definition that allocates immutable storage of the given levels of level 0's size, if it's the first one 
+	private GLTexture sendTexImage2D(int level, int internalformat, int textureWidth, int textureHeight, TextureSource src, int storageLevels, int storageWidth, int storageHeight) {
+		TextureSource staged = prefetch(level, true, src, 0, 0, min(textureWidth, src.getWidth()), min(textureHeight, src.getHeight()));
+		enqueue( new Upload(level, internalformat, true, 0, 0, textureWidth, textureHeight, staged, 0, 0).withStorage(storageLevels, storageWidth, storageHeight) );
+		return sent();
 	}
 
 	public GLTexture sendTexImage2D(int level, int internalformat, int width, int height) {
-		flowController.allocate(Double.POSITIVE_INFINITY); //warm up the flow controller
-		updates.add( target -> glTexImage2D(target, level, internalformat, width, height, 0, GL_LUMINANCE, GL_UNSIGNED_BYTE, 0) );
-		return this; 
+		enqueue( new Upload(level, internalformat, true, 0, 0, width, height, null, 0, 0).withStorage(level==0?storageLevels:0, width, height) );
+		return sent(); 
 	}
 
 	public GLTexture sendTexImage2D(int level, int internalformat, TextureSource src) {
@@ -128,7 +790,7 @@ public class GLTexture extends GLObjectWrapper {
 	}
 
 	public GLTexture sendTexImage2D(int level, TextureSource src) {
-		return sendTexImage2D(level, internalFormatForFormat(src.getFormat()), src);
+		return sendTexImage2D(level, src.getInternalFormat(), src);
 	}
 
 	public GLTexture sendTexImage2D(TextureSource src) {
@@ -141,68 +803,246 @@ public class GLTexture extends GLObjectWrapper {
 	
 	
 	public void texImage2D(int target, int level, int internalformat, int textureWidth, int textureHeight, TextureSource src) {
-		//determine actual size of pixel area to upload (texImage2D calls may request a bigger size than the texture source provides) 
-		int uploadWidth = min(textureWidth, src.getWidth());
-		int uploadHeight = min(textureHeight, src.getHeight());
+		run(target, new Upload(level, internalformat, true, 0, 0, textureWidth, textureHeight, src, 0, 0));
+	}
+	
+	//uploads right away as far as the flow allows, the rest is uploaded during the next binds
+	private void run(int target, Upload upload) {
+		upload.accept(target);
+		if (!upload.isComplete())
+			updates.add(upload);
+	}
+	
+	
+	/**
+	 * grabs a region of the source into the staging memory (pixel buffer ring or staging buffer) and uploads it from there 
+	 * @param define whether to (re-)define the texture image with glTexImage2D, or to replace a part of it with glTexSubImage2D 
+	 * @param zoffset the slice of a 3D or array texture to replace a part of, -1 for 2D textures
+	 */
+	private void upload(int target, int level, int internalformat, boolean define, int xoffset, int yoffset, int zoffset, int width, int height, TextureSource src, int skipX, int skipY, int bytesPerLine) {
+		boolean compressed = src instanceof CompressedTextureSource;
+		int lines = compressed?(height+((CompressedTextureSource)src).getBlockHeight()-1)/((CompressedTextureSource)src).getBlockHeight():height;
+		int size = bytesPerLine*lines;
 		
-		//retrieve the currently set alignment value (i know, i know, never "get" state values, but its just an int! and we are calling expensive texUploads anyways)
-		int alignment = glGetInteger(GL_UNPACK_ALIGNMENT); // or assume 4 / 16?
+		if (src instanceof DirectTextureSource && uploadDirect(target, level, internalformat, define, xoffset, yoffset, zoffset, width, height, (DirectTextureSource)src, skipX, skipY, bytesPerLine, size))
+			return;
 		
-		int paddedBytesPerLine =  pad(src.getDepth()/8*uploadWidth, alignment); //compute the size of a line with alignment in mind (paddedBytesPerLine = pad(13,4) = 16)
-
-		//compute the actual bufferSize needed to upload the portion of the source image with padded linesize in mind  
-		int requestedBufferSize = paddedBytesPerLine * uploadHeight; 
-		int allowedBufferSize = (int) flowController.allocate( requestedBufferSize ); //find out how many bytes the throttling system allows us to actually upload
-
-		//in case this is (more than) enough to upload texture in one blow
-		if (allowedBufferSize>=requestedBufferSize) synchronized (GLTexture.class) { //synchronize-out concurrent uses of the transferBuffer (wont happen most likely? -> use atomic-stuff instead?
-
-			//ensure the transferbuffer's capacity
-			ensureTransferBufferCapacity(requestedBufferSize);
-
-			//then upload the smaller section
-			src.grab(0, 0, uploadWidth, uploadHeight, (ByteBuffer)transferBuffer.clear(), 0, paddedBytesPerLine); //grab the upload region from the TextureSource 
+		ByteBuffer mapped = pixelBuffers==null?null:pixelBuffers.map(size);
+		if (mapped!=null) //grab straight into driver memory, upload from offset 0 of the bound pixel unpack buffer
+			try {
+				boolean intact;
+				try {
+					src.grab(skipX, skipY, width, height, mapped, 0, bytesPerLine);
+				} finally {
+					intact = pixelBuffers.unmap(); //false if the contents got lost while mapped, very rare (display mode switch)
+				}
+				
+				if (intact) {
+					texImage(target, level, internalformat, define, xoffset, yoffset, zoffset, width, height, src, null, size);
+					return;
+				}
+			} finally {
+				pixelBuffers.release();
+			}
+		
+		ByteBuffer staging = stagingBuffers.acquire(size); //no pixel buffers, or the mapped contents got lost, go through client memory
+		try {
+			//grab the upload region from the TextureSource, then upload it
+			src.grab(skipX, skipY, width, height, staging, 0, bytesPerLine);  
+			staging.clear().limit(size);
 			
-			//if the uploaded texture image is smaller than the requested texture size
-			if (uploadWidth<textureWidth || uploadHeight<textureHeight) { //initialize the texture in memory, then upload a subimage
-				glTexImage2D(target, level, internalformat, uploadWidth, uploadHeight, 0, src.getFormat(), src.getType(), 0); //does not fill texture with zeros!
-				glTexSubImage2D(target, level, 0, 0, uploadWidth, uploadHeight, src.getFormat(), src.getType(), (ByteBuffer)transferBuffer.clear() ); //then upload just that
-			} else
-				//initialize and upload the texture in one blow 
-				glTexImage2D(target, level, internalformat, uploadWidth, uploadHeight, 0, src.getFormat(), src.getType(), (ByteBuffer)transferBuffer.clear() );
+			texImage(target, level, internalformat, define, xoffset, yoffset, zoffset, width, height, src, staging, size);
+		} finally {
+			stagingBuffers.release(staging);
+		}
+	}
+	
+	//the GL call of an upload of size bytes from pixels, or from offset 0 of the bound pixel unpack buffer if pixels is null
+	private void texImage(int target, int level, int internalformat, boolean define, int xoffset, int yoffset, int zoffset, int width, int height, TextureSource src, ByteBuffer pixels, int size) {
+		boolean compressed = src instanceof CompressedTextureSource;
+		int format = src.getFormat(), type = src.getType();
+		
+		flowController.begin(size);
+		if (zoffset>=0) { //a slice of a 3D or array texture, always defined beforehand
+			if (compressed && pixels!=null)
+				glCompressedTexSubImage3D(target, level, xoffset, yoffset, zoffset, width, height, 1, format, pixels);
+			else
+			if (compressed)
+				glCompressedTexSubImage3D(target, level, xoffset, yoffset, zoffset, width, height, 1, format, size, 0L);
+			else
+			if (pixels!=null)
+				glTexSubImage3D(target, level, xoffset, yoffset, zoffset, width, height, 1, format, type, pixels);
+			else
+				glTexSubImage3D(target, level, xoffset, yoffset, zoffset, width, height, 1, format, type, 0L);
+		} else
+		if (compressed && define) {
+			if (pixels!=null)
+				glCompressedTexImage2D(target, level, format, width, height, 0, pixels);
+			else
+				glCompressedTexImage2D(target, level, format, width, height, 0, size, 0L);
+		} else
+		if (compressed) {
+			if (pixels!=null)
+				glCompressedTexSubImage2D(target, level, xoffset, yoffset, width, height, format, pixels);
+			else
+				glCompressedTexSubImage2D(target, level, xoffset, yoffset, width, height, format, size, 0L);
+		} else
+		if (define) {
+			if (pixels!=null)
+				glTexImage2D(target, level, internalformat, width, height, 0, format, type, pixels);
+			else
+				glTexImage2D(target, level, internalformat, width, height, 0, format, type, 0L);
+		} else {
+			if (pixels!=null)
+				glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type, pixels);
+			else
+				glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type, 0L);
+		}
+		flowController.end(size);
+	}
+	
+	
+	/**
+	 * uploads straight from the source's own memory, if GL can be told how the region is laid out in there. 
+	 * Lines of the size GL expects are uploaded as they are, others by means of GL_UNPACK_ROW_LENGTH, GL_UNPACK_SKIP_PIXELS 
+	 * and GL_UNPACK_SKIP_ROWS, which are restored afterwards. Regions of compressed sources need lines of the expected size
+	 * @return false if the source's memory is not available, or its layout can't be expressed with the pixel store
+	 */
+	private boolean uploadDirect(int target, int level, int internalformat, boolean define, int xoffset, int yoffset, int zoffset, int width, int height, DirectTextureSource src, int skipX, int skipY, int bytesPerLine, int size) {
+		ByteBuffer buffer = src.getBuffer();
+		if (buffer==null || !buffer.isDirect())
+			return false;
+		
+		int stride = src.getBytesPerLine(), offset = src.getPixelOffset();
+		ByteBuffer pixels = buffer.duplicate();
+		
+		if (src instanceof CompressedTextureSource) {
+			CompressedTextureSource c = (CompressedTextureSource)src;
+			if (stride!=bytesPerLine)
+				return false;
 			
-		} else if (allowedBufferSize>0) synchronized (GLTexture.class) { //if the upload is allowed in principle
-			//pad the allowedBufferSize to the next line (just upload lines only, don't bother with individual pixels, c'mon!!) 
-			int usedBufferSize = pad(allowedBufferSize, paddedBytesPerLine); 
-
-			ensureTransferBufferCapacity(usedBufferSize);
+			int start = offset+skipY/c.getBlockHeight()*stride+skipX/c.getBlockWidth()*c.getBytesPerBlock();
+			pixels.limit(min(buffer.capacity(), start+size));
+			pixels.position(start);
 			
-			//compute and grab the lines to upload into the transferbuffer
-			int linesToUpload = usedBufferSize/(uploadWidth*src.getDepth()/8);
-			src.grab(0, 0, uploadWidth, linesToUpload, transferBuffer, 0, paddedBytesPerLine);
+			texImage(target, level, internalformat, define, xoffset, yoffset, zoffset, width, height, src, pixels, size);
+			return true;
+		}
+		
+		int bytesPerPixel = src.getDepth()/8;
+		if (stride==bytesPerLine) { //laid out like GL expects it already, leave the pixel store alone
+			int start = offset+skipY*stride+skipX*bytesPerPixel;
+			pixels.limit(min(buffer.capacity(), start+size));
+			pixels.position(start);
 			
-			//initialize the texture, then upload the section we're allowed to upload
-			glTexImage2D(target, level, internalformat, uploadWidth, uploadHeight, 0, src.getFormat(), src.getType(), 0); //clear texture
-			glTexSubImage2D(target, level, 0, 0, uploadWidth, linesToUpload, src.getFormat(), src.getType(), (ByteBuffer)transferBuffer.clear());
-
-			//issue a new texture update to upload the rest if possible
-			//XXX but this issues a new enqueued object for each upload part, maybe redo the mechanism to allow apply(..) to mention that it's not done yet and not get expunged from update list
-			updates.add( trgt -> texSubImage2D(trgt, level, 0, linesToUpload, uploadWidth, uploadHeight-linesToUpload, src, 0, linesToUpload) );
-		} else {
-			//no permits at all? then initialize texture at least and schedule a texSubImage upload for next frame
-			glTexImage2D(target, level, internalformat, uploadWidth, uploadHeight, 0, src.getFormat(), src.getType(), 0); //clear texture
-			updates.add( trgt -> texSubImage2D(trgt, level, 0, 0, uploadWidth, uploadHeight, src, 0, 0) );
+			texImage(target, level, internalformat, define, xoffset, yoffset, zoffset, width, height, src, pixels, size);
+			return true;
+		}
+		
+		//find a row length and alignment GL derives the source's line stride from, e.g. 5 RGB pixels in 16 bytes are 5 pixels aligned to 2 
+		int rowLength = stride/max(1, bytesPerPixel), alignment = 8;
+		while (alignment>0 && pad(rowLength*bytesPerPixel, alignment)!=stride)
+			alignment >>= 1;
+		
+		if (alignment==0)
+			return false;
+		
+		GLState state = GLState.current();
+		int alignmentBefore = state.getPixelStore(GL_UNPACK_ALIGNMENT), rowLengthBefore = state.getPixelStore(GL_UNPACK_ROW_LENGTH);
+		int skipPixelsBefore = state.getPixelStore(GL_UNPACK_SKIP_PIXELS), skipRowsBefore = state.getPixelStore(GL_UNPACK_SKIP_ROWS);
+		
+		pixels.limit(min(buffer.capacity(), offset+(skipY+height)*stride));
+		pixels.position(offset);
+		
+		try {
+			state.pixelStore(GL_UNPACK_ALIGNMENT, alignment);
+			state.pixelStore(GL_UNPACK_ROW_LENGTH, rowLength);
+			state.pixelStore(GL_UNPACK_SKIP_PIXELS, skipX);
+			state.pixelStore(GL_UNPACK_SKIP_ROWS, skipY);
+			
+			texImage(target, level, internalformat, define, xoffset, yoffset, zoffset, width, height, src, pixels, size);
+		} finally {
+			state.pixelStore(GL_UNPACK_ALIGNMENT, alignmentBefore);
+			state.pixelStore(GL_UNPACK_ROW_LENGTH, rowLengthBefore);
+			state.pixelStore(GL_UNPACK_SKIP_PIXELS, skipPixelsBefore);
+			state.pixelStore(GL_UNPACK_SKIP_ROWS, skipRowsBefore);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * enqueues uploads of all levels of a mipmap chain computed on the CPU, each one throttled on its own, coarsest level first.
+	 * The base level follows the uploads, such that the texture is complete and usable from the first, blurry level on
+	 * @see TextureMipmaps#generate(TextureSource, TextureMipmaps.Filter)
+	 */
+	public GLTexture sendTexImage2DMipmaps(int internalformat, TextureSource src, TextureMipmaps.Filter filter) {
+		TextureSource[] levels = TextureMipmaps.generate(src, filter);
+		
+		sendTexParameter(GL_TEXTURE_MAX_LEVEL, levels.length-1);
+		for (int level=levels.length-1;level>=0;level--) { //the coarsest level allocates the whole chain, if storage is immutable
+			TextureSource l = levels[level];
+			sendTexImage2D(level, internalformat, l.getWidth(), l.getHeight(), l, storageLevels>0?levels.length:0, src.getWidth(), src.getHeight());
+			sendTexParameter(GL_TEXTURE_BASE_LEVEL, level);
 		}
+		
+		return this;
+	}
+
+	public GLTexture sendTexImage2DMipmaps(TextureSource src, TextureMipmaps.Filter filter) {
+		return sendTexImage2DMipmaps(src.getInternalFormat(), src, filter);
 	}
 	
+	/**
+	 * enqueues the generation of all mipmap levels from the base level on the GPU, to be sent after the base level's upload
+	 */
+	public GLTexture sendGenerateMipmap() {
+		enqueue( GENERATE_MIPMAP );
+		return sent();
+	}
+	
+	final static private TextureUpdate GENERATE_MIPMAP = target -> glGenerateMipmap(target);
+	
 	
 	//////////////
 	
 	public GLTexture sendTexSubImage2D(int level, int xoffset, int yoffset, int width, int height, TextureSource src) {
-		flowController.allocate(Double.POSITIVE_INFINITY); //warm up the flow controller
-		updates.add( target -> texSubImage2D(target, level, xoffset, yoffset, width, height, src,0, 0) );
+		return sendTexSubImage2D(level, xoffset, yoffset, 0, 0, width, height, src);
+	}
+
+	/**
+	 * enqueues an upload of the region x,y,width,height of src to xoffset,yoffset of the texture image
+	 */
+	public GLTexture sendTexSubImage2D(int level, int xoffset, int yoffset, int x, int y, int width, int height, TextureSource src) {
+		int w = min(width, src.getWidth()-x), h = min(height, src.getHeight()-y);
+		if (w<=0 || h<=0)
+			return this;
+		
+		TextureSource staged = prefetch(level, false, src, x, y, w, h);
+		int skipX = staged==src?x:0, skipY = staged==src?y:0; //the prefetch stands in for the region only
+		enqueue( new Upload(level, 0, false, xoffset, yoffset, w, h, staged, skipX, skipY) );
+		return sent();
+	}
+	
+	/**
+	 * enqueues uploads of the rectangles of src that changed since the last call, src being placed at xoffset,yoffset of the texture image.
+	 * Uploads all of src if it does not keep track of its changes, and nothing if it did not change
+	 */
+	public GLTexture sendDirtyRegions(int level, int xoffset, int yoffset, TextureSource src) {
+		DirtyRegion dirty = src.getDirtyRegion();
+		if (dirty==null)
+			return sendTexSubImage2D(level, xoffset, yoffset, src);
+		
+		dirty.drain( (x, y, width, height) -> {
+			int x0 = max(0, x), y0 = max(0, y); //clip to the source
+			sendTexSubImage2D(level, xoffset+x0, yoffset+y0, x0, y0, width-(x0-x), height-(y0-y), src);
+		});
+		
 		return this;
 	}
+	
+	public GLTexture sendDirtyRegions(int level, TextureSource src) { return sendDirtyRegions(level, 0, 0, src); }
+	public GLTexture sendDirtyRegions(TextureSource src) { return sendDirtyRegions(0, src); }
 
 	public GLTexture sendTexSubImage2D(int level, int xoffset, int yoffset, TextureSource src) { return sendTexSubImage2D(level,xoffset,yoffset,src.getWidth(),src.getHeight(),src); }
 	public GLTexture sendTexSubImage2D(int level, TextureSource src) { return sendTexSubImage2D(level, 0, 0, src); }
@@ -210,57 +1050,89 @@ public class GLTexture extends GLObjectWrapper {
 	
 	
 	void texSubImage2D(int target, int level, int xoffset, int yoffset, int subTextureWidth, int subTextureHeight, TextureSource src, int skipX, int skipY ) {
+		run(target, new Upload(level, 0, false, xoffset, yoffset, subTextureWidth, subTextureHeight, src, skipX, skipY));
+	}
+	
+	
+	///////////////// 3D and Array Textures ////////////////////////
+	
+	/**
+	 * enqueues the definition of a 3D or array texture image, depending on the target the texture is bound to, with the slices of src.
+	 * Slices are uploaded one after the other, split into tiles like 2D uploads by the FlowControl, such that big volumes 
+	 * stream in over several frames. Slices are not prefetched. A src without slices just allocates the image
+	 */
+	public GLTexture sendTexImage3D(int level, int internalformat, int width, int height, int depth, SlicedTextureSource src) {
+		if (src.getSlices()==0)
+			return sendTexImage3D(level, internalformat, width, height, depth);
 		
-		//determine actual size of pixel area to upload (texImage2D calls may request a bigger size than the texture source provides) 
-		int uploadWidth = min(subTextureWidth, src.getWidth());
-		int uploadHeight = min(subTextureHeight, src.getHeight());
+		enqueue( new Upload(level, internalformat, true, 0, 0, 0, width, height, depth, src.getSlice(0), src, 0, 0, 0) );
+		return sent();
+	}
+	
+	public GLTexture sendTexImage3D(int level, int internalformat, int width, int height, int depth) {
+		enqueue( new Upload(level, internalformat, true, 0, 0, 0, width, height, depth, null, null, 0, 0, 0) );
+		return sent();
+	}
+	
+	public GLTexture sendTexImage3D(int level, int internalformat, SlicedTextureSource src) {
+		TextureSource first = first(src);
+		return sendTexImage3D(level, internalformat, first.getWidth(), first.getHeight(), src.getSlices(), src);
+	}
+	
+	public GLTexture sendTexImage3D(int level, SlicedTextureSource src) { return sendTexImage3D(level, first(src).getInternalFormat(), src); }
+	public GLTexture sendTexImage3D(SlicedTextureSource src) { return sendTexImage3D(0, src); }
+	
+	public void texImage3D(int target, int level, int internalformat, int width, int height, int depth, SlicedTextureSource src) {
+		boolean empty = src.getSlices()==0; //just allocates the image
+		run(target, new Upload(level, internalformat, true, 0, 0, 0, width, height, depth, empty?null:src.getSlice(0), empty?null:src, 0, 0, 0));
+	}
+	
+	//the slice the size and format of the image are taken from
+	static private TextureSource first(SlicedTextureSource src) {
+		if (src.getSlices()==0)
+			throw new IllegalArgumentException("no slices to take the size and format from");
 		
-		//retrieve the currently set alignment value (i know, i know, never "get" state values, but its just an int! and we are calling expensive texUploads anyways)
-		int alignment = glGetInteger(GL_UNPACK_ALIGNMENT); // or assume 4 / 16?
-		int paddedBytesPerLine =  pad(src.getDepth()/8*uploadWidth, alignment); //compute the size of a line with alignment in mind (paddedBytesPerLine = pad(13,4) = 16)
-
-		//compute the actual bufferSize needed to upload the portion of the source image with padded linesize in mind  
-		int requestedBufferSize = paddedBytesPerLine * uploadHeight; 
-		int allowedBufferSize = (int) flowController.allocate( requestedBufferSize ); //find out how many bytes the throttling system allows us to actually upload
-
+		return src.getSlice(0);
+	}
+	
+	/**
+	 * enqueues an upload of the box x,y,z,width,height,depth of src to xoffset,yoffset,zoffset of the 3D or array texture image
+	 */
+	public GLTexture sendTexSubImage3D(int level, int xoffset, int yoffset, int zoffset, int x, int y, int z, int width, int height, int depth, SlicedTextureSource src) {
+		int d = min(depth, src.getSlices()-z);
+		if (d<=0)
+			return this;
 		
-		if (allowedBufferSize>=requestedBufferSize) synchronized (GLTexture.class) { //synchronize-out concurrent uses of the transferBuffer (wont happen most likely? -> use atomic-stuff instead?
-			//ensure the transferbuffer's capacity
-			ensureTransferBufferCapacity(requestedBufferSize);
-
-			//then upload the smaller section
-			src.grab(skipX, skipY, uploadWidth, uploadHeight, (ByteBuffer)transferBuffer.clear(), 0, paddedBytesPerLine); //grab the upload region from the TextureSource 
-			glTexSubImage2D(target, level, xoffset, yoffset, uploadWidth, uploadHeight, src.getFormat(), src.getType(), (ByteBuffer)transferBuffer.clear() ); //then upload just that
-		} else if (allowedBufferSize>0) {
-			//pad the allowedBufferSize to the next line (just upload lines only, don't bother with individual pixels, c'mon!!) 
-			int usedBufferSize = pad(allowedBufferSize, paddedBytesPerLine); 
-
-			ensureTransferBufferCapacity(usedBufferSize);
-			
-			//compute and grab the lines to upload into the transferbuffer
-			int linesToUpload = usedBufferSize/(uploadWidth*src.getDepth()/8);
-			src.grab(skipX, skipY, uploadWidth, linesToUpload, transferBuffer, 0, paddedBytesPerLine);
-			
-			glTexSubImage2D(target, level, xoffset, yoffset, uploadWidth, linesToUpload, src.getFormat(), src.getType(), (ByteBuffer)transferBuffer.clear());
-			updates.add( trgt -> texSubImage2D(trgt, level, xoffset, yoffset+linesToUpload, uploadWidth, uploadHeight-linesToUpload, src, skipX, skipY+linesToUpload) );
-		} else
-			//no permits at all? then reschedule texSubImage Upload for next frame (brrr, there's a "new") 
-			updates.add( trgt -> texSubImage2D(trgt, level, xoffset, yoffset, uploadWidth, uploadHeight, src, skipX, skipY) );
-
+		TextureSource first = src.getSlice(z);
+		int w = min(width, first.getWidth()-x), h = min(height, first.getHeight()-y);
+		if (w<=0 || h<=0)
+			return this;
+		
+		enqueue( new Upload(level, 0, false, xoffset, yoffset, zoffset, w, h, d, first, src, x, y, z) );
+		return sent();
 	}
-
+	
+	public GLTexture sendTexSubImage3D(int level, int xoffset, int yoffset, int zoffset, SlicedTextureSource src) { 
+		return sendTexSubImage3D(level, xoffset, yoffset, zoffset, 0, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, src); 
+	}
+	
+	/**
+	 * enqueues an upload of src into a layer of an array texture, or a slice of a 3D texture
+	 */
+	public GLTexture sendTexSubImageLayer(int level, int xoffset, int yoffset, int layer, TextureSource src) { return sendTexSubImage3D(level, xoffset, yoffset, layer, SlicedTextureSource.of(src)); }
+	public GLTexture sendTexSubImageLayer(int level, int layer, TextureSource src) { return sendTexSubImageLayer(level, 0, 0, layer, src); }
 	
 	
 	///////////////// Parameter ////////////////////////
 	
-	public GLTexture sendTexParameter(final int pname, final int param) { return send(target -> glTexParameteri(target, pname, param) ); }
-	public GLTexture sendTexParameter(final int pname, final float param) { return send( target -> glTexParameterf(target, pname, param) ); }
-	public GLTexture sendTexParameter(final int pname, final int... param) { return send( target -> glTexParameteriv(target, pname, param) ); }
-	public GLTexture sendTexParameter(final int pname, final float... param) { return send( target -> glTexParameterfv(target, pname, param) ); }
+	public GLTexture sendTexParameter(final int pname, final int param) { return send( new TexParameter(pname, target -> glTexParameteri(target, pname, param)) ); }
+	public GLTexture sendTexParameter(final int pname, final float param) { return send( new TexParameter(pname, target -> glTexParameterf(target, pname, param)) ); }
+	public GLTexture sendTexParameter(final int pname, final int... param) { return send( new TexParameter(pname, target -> glTexParameteriv(target, pname, param)) ); }
+	public GLTexture sendTexParameter(final int pname, final float... param) { return send( new TexParameter(pname, target -> glTexParameterfv(target, pname, param)) ); }
 	public GLTexture sendTexParameter(TextureParameter param) { return send( param ); }
 	public GLTexture sendTexParameter(TextureParameter... params) {
 		for (TextureUpdate param: params)
-			updates.add(param);
+			enqueue(param);
 		return this;
 	}
 	
@@ -274,6 +1146,7 @@ public class GLTexture extends GLObjectWrapper {
 		
 		final int param;
 		private MagFilter(int param) { this.param = param; }
+		@Override public int getParameterName() { return GL_TEXTURE_MAG_FILTER; }
 		public void accept(int target) { glTexParameteri(target, GL_TEXTURE_MAG_FILTER, param	); 	}
 	}
 
@@ -286,6 +1159,7 @@ public class GLTexture extends GLObjectWrapper {
 		
 		final int param;
 		private MinFilter(int param) { this.param = param; }
+		@Override public int getParameterName() { return GL_TEXTURE_MIN_FILTER; }
 		public void accept(int target) { glTexParameteri(target, GL_TEXTURE_MIN_FILTER, param	); 	}
 	}
 
@@ -301,6 +1175,7 @@ public class GLTexture extends GLObjectWrapper {
 		
 		final int param;
 		private Wrap(int param) { this.param = param; }
+		@Override public boolean writes(int pname) { return pname==GL_TEXTURE_WRAP_R || pname==GL_TEXTURE_WRAP_S || pname==GL_TEXTURE_WRAP_T; }
 		public void accept(int target) {
 			glTexParameteri(target, GL_TEXTURE_WRAP_R, param);
 			glTexParameteri(target, GL_TEXTURE_WRAP_S, param);	
@@ -315,6 +1190,7 @@ public class GLTexture extends GLObjectWrapper {
 		
 		final int param;
 		private WrapR(int param) { this.param = param; }
+		@Override public int getParameterName() { return GL_TEXTURE_WRAP_R; }
 		public void accept(int target) {
 			glTexParameteri(target, GL_TEXTURE_WRAP_R, param);
 		}
@@ -327,6 +1203,7 @@ public class GLTexture extends GLObjectWrapper {
 		
 		final int param;
 		private WrapS(int param) { this.param = param; }
+		@Override public int getParameterName() { return GL_TEXTURE_WRAP_S; }
 		public void accept(int target) {
 			glTexParameteri(target, GL_TEXTURE_WRAP_S, param);
 		}
@@ -339,6 +1216,7 @@ public class GLTexture extends GLObjectWrapper {
 		
 		final int param;
 		private WrapT(int param) { this.param = param; }
+		@Override public int getParameterName() { return GL_TEXTURE_WRAP_T; }
 		public void accept(int target) {
 			glTexParameteri(target, GL_TEXTURE_WRAP_T, param);
 		}
@@ -352,6 +1230,7 @@ public class GLTexture extends GLObjectWrapper {
 		
 		final int param;
 		private GenerateMipMap(int param) { this.param = param; }
+		@Override public int getParameterName() { return GL_GENERATE_MIPMAP; }
 		@Override public void accept(int target) { glTexParameteri(target, GL_GENERATE_MIPMAP, param); }
 	}
 	
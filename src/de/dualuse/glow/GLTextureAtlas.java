@@ -0,0 +1,288 @@
+package de.dualuse.glow;
+
+import static java.lang.Math.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <h2>Many small TextureSources packed into a few big GLTextures</h2>
+ *
+ * <pre>
+ * - sources are packed into square pages of pageSize, a new page is opened when none has room left
+ * - packing is guillotine style, best area fit, splitting along the shorter leftover axis
+ * - released regions go back to their page's free space, merged with adjacent free rectangles
+ * - uploads are sent as sub images to the page's GLTexture, they run batched, throttled by the page's FlowControl, on its next bind
+ * - regions are padded with copies of their edges and corners, to keep linear filtering from bleeding into neighbours
+ * </pre>
+ */
+public class GLTextureAtlas {
+	final static public int DEFAULT_PAGE_SIZE = 2048;
+	final static public int DEFAULT_PADDING = 1;
+
+	public final int internalformat, pageSize, padding;
+
+	private final ArrayList<Page> pages = new ArrayList<>();
+	private FlowControl flow = requested -> requested;
+
+	public GLTextureAtlas(int internalformat) {
+		this(internalformat, DEFAULT_PAGE_SIZE, DEFAULT_PADDING);
+	}
+
+	public GLTextureAtlas(int internalformat, int pageSize, int padding) {
+		this.internalformat = internalformat;
+		this.pageSize = pageSize;
+		this.padding = padding;
+	}
+
+	/**
+	 * throttle the uploads of all pages, present and future ones
+	 */
+	public synchronized GLTextureAtlas setFlow(FlowControl flow) {
+		this.flow = flow;
+		for (Page p: pages)
+			p.texture.setFlow(flow);
+
+		return this;
+	}
+
+	/**
+	 * A rectangle of a page holding one source
+	 */
+	public class Region {
+		public final GLTexture texture;
+		public final int x, y, width, height;
+		public final float u0, v0, u1, v1;
+
+		private final Page page;
+		private boolean released = false;
+
+		private Region(Page page, int x, int y, int width, int height) {
+			this.page = page;
+			this.texture = page.texture;
+			this.x = x; this.y = y;
+			this.width = width; this.height = height;
+
+			this.u0 = x/(float)pageSize; this.v0 = y/(float)pageSize;
+			this.u1 = (x+width)/(float)pageSize; this.v1 = (y+height)/(float)pageSize;
+		}
+
+		/**
+		 * enqueues an upload of a changed source of the same size
+		 */
+		public Region update(TextureSource src) {
+			texture.sendTexSubImage2D(0, x-padding, y-padding, padding==0?src:new Padded(src, padding));
+			return this;
+		}
+
+		/**
+		 * hands the region back to the atlas, its texture coordinates may be given to another source afterwards
+		 */
+		public void release() {
+			synchronized (GLTextureAtlas.this) {
+				if (released)
+					return;
+
+				released = true;
+				page.free.free(x-padding, y-padding, width+2*padding, height+2*padding);
+			}
+		}
+	}
+
+	/**
+	 * Packs the source into a page and enqueues its upload
+	 * @return the region holding the source
+	 * @throws IllegalArgumentException if the source does not fit into a page
+	 */
+	public synchronized Region add(TextureSource src) {
+		int width = src.getWidth(), height = src.getHeight();
+		int w = width+2*padding, h = height+2*padding;
+		if (w>pageSize || h>pageSize)
+			throw new IllegalArgumentException(width+" x "+height+" exceeds the page size of "+pageSize);
+
+		for (Page p: pages) {
+			Region r = p.place(src, w, h);
+			if (r!=null)
+				return r;
+		}
+
+		Page p = new Page();
+		pages.add(p);
+		return p.place(src, w, h);
+	}
+
+	/**
+	 * @return the textures of all pages, index by index
+	 */
+	public synchronized GLTexture[] getTextures() {
+		GLTexture[] textures = new GLTexture[pages.size()];
+		for (int i=0;i<textures.length;i++)
+			textures[i] = pages.get(i).texture;
+
+		return textures;
+	}
+
+	public synchronized void deleteTextures() {
+		for (Page p: pages)
+			p.texture.deleteTexture();
+
+		pages.clear();
+	}
+
+	/**
+	 * the source with its edge pixels repeated padding times around it, as if sampled with clamped coordinates
+	 */
+	static private class Padded implements TextureSource {
+		final TextureSource source;
+		final int padding;
+
+		Padded(TextureSource source, int padding) {
+			this.source = source;
+			this.padding = padding;
+		}
+
+		@Override
+		public void grab(int x, int y, int width, int height, ByteBuffer to, int offset, int bytesPerLine) {
+			int sourceWidth = source.getWidth(), sourceHeight = source.getHeight(), bytesPerPixel = getDepth()/8;
+
+			//the columns and rows of the region inside the source, at least one to repeat if the region is all padding
+			int i0 = max(0, min(width, padding-x)), i1 = max(0, min(width, sourceWidth+padding-x));
+			int j0 = max(0, min(height, padding-y)), j1 = max(0, min(height, sourceHeight+padding-y));
+			if (i0>=i1) { i0 = min(i0, width-1); i1 = i0+1; }
+			if (j0>=j1) { j0 = min(j0, height-1); j1 = j0+1; }
+
+			int sx = max(0, min(sourceWidth-1, x+i0-padding)), sy = max(0, min(sourceHeight-1, y+j0-padding));
+			source.grab(sx, sy, i1-i0, j1-j0, to, offset+j0*bytesPerLine+i0*bytesPerPixel, bytesPerLine);
+
+			for (int j=j0;j<j1;j++) { //repeat the first and last pixel of each line into the padding left and right
+				int line = offset+j*bytesPerLine;
+				for (int i=0;i<i0;i++)
+					copy(to, line+i0*bytesPerPixel, line+i*bytesPerPixel, bytesPerPixel);
+
+				for (int i=i1;i<width;i++)
+					copy(to, line+(i1-1)*bytesPerPixel, line+i*bytesPerPixel, bytesPerPixel);
+			}
+
+			for (int j=0;j<j0;j++) //then the first and last line into the padding above and below, corners included
+				copy(to, offset+j0*bytesPerLine, offset+j*bytesPerLine, width*bytesPerPixel);
+
+			for (int j=j1;j<height;j++)
+				copy(to, offset+(j1-1)*bytesPerLine, offset+j*bytesPerLine, width*bytesPerPixel);
+		}
+
+		static private void copy(ByteBuffer b, int from, int to, int length) {
+			ByteBuffer src = b.duplicate();
+			src.limit(from+length).position(from);
+			((ByteBuffer)b.duplicate().position(to)).put(src);
+		}
+
+		@Override public int getWidth() { return source.getWidth()+2*padding; }
+		@Override public int getHeight() { return source.getHeight()+2*padding; }
+		@Override public int getDepth() { return source.getDepth(); }
+		@Override public int getFormat() { return source.getFormat(); }
+		@Override public int getType() { return source.getType(); }
+		@Override public int getInternalFormat() { return source.getInternalFormat(); }
+	}
+
+	///////////////////
+
+	private class Page {
+		final GLTexture texture = new GLTexture()
+				.sendTexImage2D(0, internalformat, pageSize, pageSize)
+				.sendTexParameter(GLTexture.MinFilter.LINEAR, GLTexture.MagFilter.LINEAR, GLTexture.Wrap.CLAMP_TO_EDGE)
+				.setFlow(flow);
+
+		final Guillotine free = new Guillotine(pageSize, pageSize);
+
+		Region place(TextureSource src, int w, int h) {
+			long at = free.allocate(w, h);
+			if (at<0)
+				return null;
+
+			int x = (int)(at>>>32)+padding, y = (int)at+padding;
+			return new Region(this, x, y, src.getWidth(), src.getHeight()).update(src);
+		}
+	}
+
+	/**
+	 * free space of a page as a list of disjoint rectangles
+	 */
+	static class Guillotine {
+		private int[] rects = new int[64]; //x, y, width, height each
+		private int count = 0;
+
+		Guillotine(int width, int height) {
+			add(0, 0, width, height);
+		}
+
+		/**
+		 * @return x<<32 | y of the allocated rectangle, or -1 if there's no room
+		 */
+		long allocate(int w, int h) {
+			int best = -1;
+			long bestArea = Long.MAX_VALUE;
+			for (int i=0, o=0;i<count;i++, o+=4)
+				if (rects[o+2]>=w && rects[o+3]>=h && (long)rects[o+2]*rects[o+3]<bestArea) {
+					bestArea = (long)rects[o+2]*rects[o+3];
+					best = i;
+				}
+
+			if (best<0)
+				return -1;
+
+			int o = best*4, x = rects[o], y = rects[o+1], fw = rects[o+2], fh = rects[o+3];
+			remove(best);
+
+			//split along the shorter leftover axis, such that the bigger leftover stays in one piece
+			int rightW = fw-w, bottomH = fh-h;
+			if (rightW<bottomH) {
+				add(x+w, y, rightW, h);
+				add(x, y+h, fw, bottomH);
+			} else {
+				add(x+w, y, rightW, fh);
+				add(x, y+h, w, bottomH);
+			}
+
+			return (long)x<<32 | y&0xFFFFFFFFL;
+		}
+
+		void free(int x, int y, int w, int h) {
+			//merge with free neighbours sharing a whole edge, as long as there are any
+			for (boolean merged = true; merged; ) {
+				merged = false;
+				for (int i=0, o=0;i<count && !merged;i++, o+=4) {
+					int fx = rects[o], fy = rects[o+1], fw = rects[o+2], fh = rects[o+3];
+					if (fy==y && fh==h && (fx+fw==x || x+w==fx)) {
+						x = min(x, fx); w += fw;
+						merged = true;
+					} else
+					if (fx==x && fw==w && (fy+fh==y || y+h==fy)) {
+						y = min(y, fy); h += fh;
+						merged = true;
+					}
+
+					if (merged)
+						remove(i);
+				}
+			}
+
+			add(x, y, w, h);
+		}
+
+		private void add(int x, int y, int w, int h) {
+			if (w<=0 || h<=0)
+				return;
+
+			if (count*4==rects.length)
+				rects = Arrays.copyOf(rects, rects.length*2);
+
+			int o = count++*4;
+			rects[o] = x; rects[o+1] = y; rects[o+2] = w; rects[o+3] = h;
+		}
+
+		private void remove(int i) {
+			System.arraycopy(rects, --count*4, rects, i*4, 4);
+		}
+	}
+}
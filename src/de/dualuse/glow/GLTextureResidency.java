@@ -0,0 +1,92 @@
+package de.dualuse.glow;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <h2>Video memory budget for a set of GLTextures</h2>
+ *
+ * <pre>
+ * - keeps track of the estimated video memory of every managed GLTexture that is resident
+ * - once the budget is exceeded, the least recently bound textures are evicted, i.e. their GL objects are deleted
+ * - evicted textures are restored from the sources of their sendTexImage2D calls and their parameters on their next bindTexture,
+ *   the uploads go through the texture's FlowControl as usual
+ * - only textures without pending updates are evicted
+ * - contents sent as sub images only are not restored, so textures like atlas pages should not be managed
+ * - to be used with textures of one context only, on the thread that context is current on
+ * </pre>
+ */
+public class GLTextureResidency {
+	public volatile long budgetBytes;
+
+	private final LinkedHashMap<GLTexture,Long> resident = new LinkedHashMap<>(64, .75f, true); //least recently bound first
+	private long residentBytes = 0;
+	private long hits = 0, misses = 0, evictions = 0;
+
+	/**
+	 * @param budgetBytes estimated video memory all managed textures may occupy together
+	 */
+	public GLTextureResidency(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+	}
+
+	//called by bindTexture before binding, restores evicted textures
+	synchronized void binding(GLTexture texture) {
+		if (resident.get(texture)!=null) {
+			hits++;
+			return;
+		}
+
+		if (texture.restore())
+			misses++;
+
+		resident.put(texture, 0L);
+	}
+
+	//called by bindTexture after binding, accounts for changed sizes and evicts others if over budget
+	synchronized void bound(GLTexture texture) {
+		long size = texture.getEstimatedSize();
+		Long previous = resident.put(texture, size);
+		residentBytes += size-(previous==null?0:previous);
+
+		for (Iterator<Map.Entry<GLTexture,Long>> i = resident.entrySet().iterator(); residentBytes>budgetBytes && i.hasNext(); ) {
+			Map.Entry<GLTexture,Long> e = i.next();
+			if (e.getKey()==texture || !e.getKey().evict())
+				continue;
+
+			residentBytes -= e.getValue();
+			evictions++;
+			i.remove();
+		}
+	}
+
+	synchronized void deleted(GLTexture texture) {
+		Long size = resident.remove(texture);
+		if (size!=null)
+			residentBytes -= size;
+	}
+
+	///////////////////
+
+	/**
+	 * @return estimated video memory of the resident textures
+	 */
+	public synchronized long getResidentBytes() { return residentBytes; }
+	public synchronized int getResidentCount() { return resident.size(); }
+
+	/**
+	 * @return number of binds that found their texture resident
+	 */
+	public synchronized long getHits() { return hits; }
+
+	/**
+	 * @return number of binds that had to restore their evicted texture
+	 */
+	public synchronized long getMisses() { return misses; }
+	public synchronized long getEvictions() { return evictions; }
+
+	public synchronized void resetStatistics() {
+		hits = misses = evictions = 0;
+	}
+}
@@ -0,0 +1,138 @@
+package de.dualuse.glow;
+
+import static java.lang.Math.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <h2>Frame budgeted upload scheduling across GLTextures</h2>
+ *
+ * <pre>
+ * - all scheduled GLTextures share one FlowControl, that hands out a byte and a time budget per frame
+ * - {@link #frame()} is to be called once per frame on the GL thread, it starts a new budget and runs pending uploads
+ *   of all scheduled textures, whether they are bound by the application or not
+ * - overdue uploads go first, earliest deadline first, then the ones of higher priority, then by deadline again
+ * - textures that are bound by the application in between draw from the same budget, so the total per frame stays bounded
+ * - to be used with textures of one context only
+ * </pre>
+ */
+public class GLUploadScheduler {
+	final static public long DEFAULT_MAX_DELAY_MILLIS = 1000;
+
+	public volatile double bytesPerFrame;
+	public volatile double secondsPerFrame;
+
+	private final Queue<Entry> submitted = new ConcurrentLinkedQueue<>();
+	private final ArrayList<Entry> pending = new ArrayList<>();
+
+	private double remainingBytes = 0;
+	private long frameEnd = 0;
+
+	/**
+	 * the FlowControl shared by all scheduled textures, grants nothing before the first {@link #frame()}
+	 */
+	final FlowControl flow = this::allocate;
+
+	/**
+	 * @param bytesPerFrame upload volume per frame, e.g. 16MB for 1GB/s at 60Hz
+	 * @param secondsPerFrame time per frame spent for issuing uploads, e.g. 0.004 for 4ms
+	 */
+	public GLUploadScheduler(double bytesPerFrame, double secondsPerFrame) {
+		this.bytesPerFrame = bytesPerFrame;
+		this.secondsPerFrame = secondsPerFrame;
+	}
+
+	static class Entry {
+		final GLUploadScheduler scheduler;
+		final GLTexture texture;
+		final int target, priority;
+		final long maxDelayNanos;
+
+		final AtomicBoolean queued = new AtomicBoolean(false);
+		long deadline;
+
+		private Entry(GLUploadScheduler scheduler, GLTexture texture, int target, int priority, long maxDelayNanos) {
+			this.scheduler = scheduler;
+			this.texture = texture;
+			this.target = target;
+			this.priority = priority;
+			this.maxDelayNanos = maxDelayNanos;
+		}
+
+		//may be called from any thread, keeps the deadline of an already queued entry
+		void submit() {
+			if (!queued.compareAndSet(false, true))
+				return;
+
+			deadline = System.nanoTime()+maxDelayNanos;
+			scheduler.submitted.add(this);
+		}
+	}
+
+	Entry register(GLTexture texture, int target, int priority, long maxDelayMillis) {
+		return new Entry(this, texture, target, priority, maxDelayMillis*1000000);
+	}
+
+	private double allocate(double requested) {
+		if (System.nanoTime()>=frameEnd)
+			return 0;
+
+		double granted = max(0, min(requested, remainingBytes));
+		remainingBytes -= granted;
+		return granted;
+	}
+
+	/**
+	 * Starts a new frame budget and runs the pending uploads in order, until it's spent
+	 */
+	public void frame() {
+		long now = System.nanoTime();
+		remainingBytes = bytesPerFrame;
+		frameEnd = now+(long)(secondsPerFrame*1e9);
+
+		for (Entry e = submitted.poll(); e!=null; e = submitted.poll())
+			pending.add(e);
+
+		pending.sort(byUrgency(now));
+
+		int done = 0;
+		for (int I=pending.size(); done<I && remainingBytes>0 && System.nanoTime()<frameEnd; done++) {
+			Entry e = pending.get(done);
+			e.queued.set(false);
+
+			if (e.texture.scheduling!=e) //rescheduled or unscheduled in the meantime
+				continue;
+
+			e.texture.update(e.target);
+
+			if (!e.texture.updates.isEmpty() && e.queued.compareAndSet(false, true)) //not done yet, keeps its deadline
+				submitted.add(e);
+		}
+
+		pending.subList(0, done).clear();
+	}
+
+	/**
+	 * @return the number of textures waiting for their uploads
+	 */
+	public int getPendingCount() {
+		return pending.size()+submitted.size();
+	}
+
+	static private Comparator<Entry> byUrgency(long now) {
+		return (a, b) -> {
+			boolean overdueA = a.deadline<=now, overdueB = b.deadline<=now;
+			if (overdueA!=overdueB)
+				return overdueA?-1:1;
+
+			if (!overdueA && a.priority!=b.priority)
+				return Integer.compare(b.priority, a.priority);
+
+			return Long.compare(a.deadline, b.deadline);
+		};
+	}
+}
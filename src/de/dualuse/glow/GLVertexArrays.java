@@ -3,11 +3,38 @@ package de.dualuse.glow;
 import static java.lang.Math.*;
 import static org.lwjgl.BufferUtils.*;
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.*;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 
-public class GLVertexArrays extends GLAPI implements VertexWriterTrait {
+import org.lwjgl.opengl.ARBDrawInstanced;
+import org.lwjgl.opengl.ARBInstancedArrays;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * <h2>Vertex Arrays</h2>
+ * 
+ * <pre>
+ * - written attribute by attribute through the VertexWriter calls, drawn from client memory or sent to a GLVertexBufferObject
+ * - planar by default, each attribute in an array of its own
+ * - interleaved on request, all attributes of a vertex next to each other in one array, with each attribute's slot and the stride 
+ *   padded to the alignment, such that a vertex is fetched from one place in memory and one buffer is bound for all attributes
+ * - the interleaved layout is taken over from the arrays written before, and laid out anew only when an attribute or its type changes
+ * - drawn with glDrawElements if indices were written, as unsigned bytes, shorts or ints, whichever fits the number of vertices
+ * - repeated vertices are dropped on send if asked to deduplicate, comparing all attributes, and the indices are made to refer 
+ *   to the vertices kept, or made up in the order the vertices were written if none were written
+ * - attributes with a divisor advance per instance instead of per vertex, and are kept in planes of their own,
+ *   also when interleaving, as many instances are drawn as all of them have values for, with GL 3.1 or ARB_draw_instanced
+ * </pre>
+ */
+public class GLVertexArrays extends GLAPI implements VertexWriterTrait, IndexWriter {
 	static enum BasicType {
 		VOID(0, 0),
 		BYTE(1, GL_BYTE),
@@ -35,11 +62,46 @@ public class GLVertexArrays extends GLAPI implements VertexWriterTrait {
 	private BasicType types[] = new BasicType[0];
 	private Boolean normalize[] = new Boolean[0];
 	private int counters[] = new int[0];
+	private int divisors[] = new int[0]; //0 for attributes advancing per vertex
 	
 	private int plane = -1, planes = 0;
 	private int mode = -1;
+	private int instances = 0; //as many as all per instance attributes have values for
 	int version = 0;
 	
+	private boolean interleave = false, interleaved = false; //requested, in effect since begin
+	private int align = 4, alignment = 4; //requested, in effect since begin
+	private ByteBuffer vertices = createByteBuffer(0); //all planes, interleaved
+	private int stride = 0, slots = 0; //of the interleaved layout
+	private GLAttribute slotAttributes[] = new GLAttribute[0];
+	private int slotSizes[] = new int[0], slotOffsets[] = new int[0]; //in bytes, 0 for planes of unknown type
+	
+	private int elements[] = new int[0]; //indices as written, or as made by deduplicating
+	private int elementCount = 0, maxElement = -1;
+	private boolean deduplicate = false, deduplicated = false;
+	
+	private ByteBuffer indices = createByteBuffer(0); //as sent
+	private int indexCount = 0, indexType = GL_UNSIGNED_BYTE, indexSize = 1;
+	private GLVertexBufferObject ibo = null; //holding the indices since they were last sent, null to draw them from client memory
+	
+	private GLVertexBufferObject vbo = null; //holding the arrays since they were last sent, null to draw from client memory
+	private long[] offsets = new long[0]; //of the planes in vbo
+	
+	final static private int MAX_VERTEX_ARRAY_OBJECTS = 4; //per context, for as many programs of different attribute locations
+	private final ArrayList<VertexArrayObject> vertexArrayObjects = new ArrayList<>(); //most recently used last
+	
+	//the attribute pointers into a vbo for one layout of attribute locations, valid as long as version and vbo are the same 
+	static private class VertexArrayObject {
+		final GLState state;
+		final int name;
+		final int[] locations;
+		int version = -1, buffer = GLObjectWrapper.INVALID_NAME; //built for
+		
+		VertexArrayObject(GLState state, int name, int[] locations) {
+			this.state = state; this.name = name; this.locations = locations;
+		}
+	}
+	
 	
 	@Override
 	public VertexWriter attribute(GLAttribute a) {
@@ -47,16 +109,21 @@ public class GLVertexArrays extends GLAPI implements VertexWriterTrait {
 			if (attributes[plane] == a)
 				return this;
 		
-		if (planes<attributes.length)
+		if (planes<attributes.length) {
 			attributes[planes++] = a;
-		else {
-			int targetCapacity = max(minCapacity, length);
+			normalize[plane] = a.type.isFloatingPoint;
+			divisors[plane] = 0;
+		} else {
+			int targetCapacity = interleaved?0:max(minCapacity, length); //interleaved planes share vertices
 			ByteBuffer buffer = createByteBuffer( targetCapacity * a.size * a.type.sizeOfType );
 			
 			buffers = join(buffers, buffer);
 			attributes = join(attributes, a);
 			types = join(types, BasicType.VOID);
 			normalize = join(normalize, a.type.isFloatingPoint);
+			counters = Arrays.copyOf(counters, counters.length+1);
+			divisors = Arrays.copyOf(divisors, divisors.length+1);
+			planes++;
 		}
 		
 		return this;
@@ -72,11 +139,56 @@ public class GLVertexArrays extends GLAPI implements VertexWriterTrait {
 		return this;
 	}
 	
+	/**
+	 * write all attributes of a vertex next to each other into one array, instead of each attribute into an array of its own.
+	 * Takes effect with the next begin
+	 */
+	public GLVertexArrays interleave(boolean doIt) {
+		interleave = doIt;
+		return this;
+	}
+	
+	/**
+	 * advance the current attribute once every divisor instances instead of once per vertex, 0 to advance per vertex again.
+	 * Its values are kept in a plane of their own, also when interleaving
+	 * @throws IllegalStateException if values were written to the attribute already
+	 */
+	public GLVertexArrays divisor(int divisor) {
+		if (divisor<0)
+			throw new IllegalArgumentException("negative divisor: "+divisor);
+		
+		if (counters[plane]>0)
+			throw new IllegalStateException("values written already");
+		
+		divisors[plane] = divisor;
+		version++; //the divisors are part of the vertex array objects
+		return this;
+	}
+	
+	/**
+	 * drop repeated vertices on send, making the indices refer to the vertices kept
+	 */
+	public GLVertexArrays deduplicate(boolean doIt) {
+		deduplicate = doIt;
+		return this;
+	}
+	
+	/**
+	 * alignment of the attributes and the stride of interleaved vertices, 4 by default, 1 to pack them tightly. Takes effect with the next begin
+	 */
+	public GLVertexArrays alignment(int bytes) {
+		if (bytes<1 || Integer.bitCount(bytes)!=1)
+			throw new IllegalArgumentException("alignment must be a power of two: "+bytes);
+		
+		align = bytes;
+		return this;
+	}
+	
 	static private ByteBuffer ensureCapacity( ByteBuffer buf, int sizeAtLeast ) {
-		if (buf.capacity()>sizeAtLeast)
+		if (buf.capacity()>=sizeAtLeast)
 			return buf;
 		
-		int actualSize = int.class.cast( sizeAtLeast * GROWTH );
+		int actualSize = (int) ( sizeAtLeast * GROWTH );
 		ByteBuffer newBuf = createByteBuffer( actualSize);
 		
 		buf.flip();
@@ -85,16 +197,19 @@ public class GLVertexArrays extends GLAPI implements VertexWriterTrait {
 	}
 	
 	
+	//GL converts the components to the attribute's type, their number has to match, and all values of a plane must be of one type
 	protected void check(GLValueType b, BasicType providedType) {
-		if (attributes[plane].type!=b || 
-				types[plane].isOkWith(providedType))
+		if (attributes[plane].type.dimension!=b.dimension || 
+				!types[plane].isOkWith(providedType))
 				throw new IllegalArgumentException();
 	}
 	
 	protected ByteBuffer buffer(GLValueType attributeType, BasicType providedType) {
 		check(attributeType,providedType);
+		if (interleaved(plane))
+			return slot(attributeType.dimension * providedType.sizeOf, providedType);
 
-		ensureCapacity(buffers[plane], max(minCapacity, buffers[plane].position()+attributeType.dimension * providedType.sizeOf) );
+		buffers[plane] = ensureCapacity(buffers[plane], max(minCapacity, buffers[plane].position()+attributeType.dimension * providedType.sizeOf) );
 		
 		counters[plane]++;
 		types[plane] = providedType;
@@ -102,6 +217,92 @@ public class GLVertexArrays extends GLAPI implements VertexWriterTrait {
 	}
 	
 	
+	//the vertices positioned at the current plane's slot of its next vertex
+	private ByteBuffer slot(int size, BasicType providedType) {
+		if (plane>=slots || slotAttributes[plane]!=attributes[plane] || slotSizes[plane]!=size)
+			layout(plane, size); //the plane's first value, laid out differently than in the arrays before
+		
+		int at = counters[plane]*stride+slotOffsets[plane];
+		if (vertices.capacity()<at+stride) {
+			ByteBuffer grown = createByteBuffer( (int) ( (at+stride) * GROWTH ) );
+			grown.put( (ByteBuffer) vertices.clear() );
+			vertices = grown;
+		}
+		
+		counters[plane]++;
+		types[plane] = providedType;
+		vertices.position(at); //its limit is its capacity
+		return vertices;
+	}
+	
+	//lays out the current planes, the given plane with a slot of the given size, and moves the values written so far 
+	private void layout(int plane, int size) {
+		int sizes[] = new int[planes], offsets[] = new int[planes];
+		int stride = 0, count = 0;
+		
+		for (int i=0;i<planes;i++) {
+			if (divisors[i]>0)
+				continue; //in a plane of its own
+			
+			if (i==plane)
+				sizes[i] = size;
+			else
+			if (i<slots && slotAttributes[i]==attributes[i])
+				sizes[i] = slotSizes[i];
+			
+			if (sizes[i]>0) {
+				offsets[i] = stride = pad(stride, alignment);
+				stride += sizes[i];
+			}
+			
+			count = max(count, counters[i]);
+		}
+		stride = max(pad(stride, alignment), alignment);
+		
+		ByteBuffer moved = createByteBuffer( max(minCapacity, count) * stride ), from = vertices.duplicate(), to = moved.duplicate();
+		for (int i=0;i<planes;i++)
+			for (int j=0;sizes[i]>0 && j<counters[i];j++) {
+				from.limit(j*this.stride+slotOffsets[i]+sizes[i]).position(j*this.stride+slotOffsets[i]);
+				to.position(j*stride+offsets[i]);
+				to.put(from);
+			}
+		
+		this.vertices = moved;
+		this.stride = stride;
+		this.slots = planes;
+		this.slotAttributes = Arrays.copyOf(attributes, planes);
+		this.slotSizes = sizes;
+		this.slotOffsets = offsets;
+	}
+	
+	//in the interleaved vertices, rather than in a plane of its own
+	private boolean interleaved(int plane) {
+		return interleaved && divisors[plane]==0;
+	}
+	
+	static private int pad(int offset, int alignment) {
+		return (offset+alignment-1)&-alignment;
+	}
+	
+	@Override public IndexWriter indices() { return this; }
+	
+	@Override 
+	public IndexWriter index(int i) {
+		if (i<0)
+			throw new IllegalArgumentException("negative index: "+i);
+		
+		if (elementCount==elements.length)
+			elements = Arrays.copyOf(elements, max(minCapacity, (int) ( elementCount * GROWTH )));
+		
+		elements[elementCount++] = i;
+		maxElement = max(maxElement, i);
+		return this;
+	}
+	
+	@Override public IndexWriter line(int a, int b) { return index(a).index(b); }
+	@Override public IndexWriter triangle(int a, int b, int c) { return index(a).index(b).index(c); }
+	@Override public IndexWriter quad(int a, int b, int c, int d) { return triangle(a, b, c).triangle(a, c, d); }
+	
 	@Override public VertexWriter value(byte x) { buffer(GLValueType.INT, BasicType.BYTE).put(x); return this; }
 	@Override public VertexWriter value(int x) { buffer(GLValueType.INT, BasicType.INT).putInt(x); return this; }
 	@Override public VertexWriter value(short x) { buffer(GLValueType.INT, BasicType.SHORT).putShort(x); return this; }
@@ -120,13 +321,19 @@ public class GLVertexArrays extends GLAPI implements VertexWriterTrait {
 	
 	@Override public VertexWriter vec4b(byte x, byte y, byte z, byte w) { buffer(GLValueType.INT_VEC4, BasicType.BYTE) .put(x).put(y).put(z).put(w); return this; }
 	@Override public VertexWriter vec4i(int x, int y, int z, int w) { buffer(GLValueType.INT_VEC4, BasicType.INT) .putInt(x).putInt(y).putInt(z).putInt(w); return this; }
-	@Override public VertexWriter vec4f(float x, float y, float z, float w) { buffer(GLValueType.FLOAT_VEC4, BasicType.FLOAT) .putFloat(x).putFloat(y).putFloat(z).putFloat(z); return this; }
+	@Override public VertexWriter vec4f(float x, float y, float z, float w) { buffer(GLValueType.FLOAT_VEC4, BasicType.FLOAT) .putFloat(x).putFloat(y).putFloat(z).putFloat(w); return this; }
 	@Override public VertexWriter vec4d(double x, double y, double z, double w) { buffer(GLValueType.FLOAT_VEC4, BasicType.DOUBLE).putDouble(x).putDouble(y).putDouble(z).putDouble(w); return this; }
 	
 	
 	public VertexWriter begin(int mode) {
 		this.mode = mode;
 		
+		if (interleaved!=interleave || alignment!=align)
+			slots = 0; //lay out anew
+		
+		interleaved = interleave;
+		alignment = align;
+		
 		for (int i=0;i<planes;i++) {
 			buffers[i].clear();
 			attributes[i] = null;
@@ -135,22 +342,150 @@ public class GLVertexArrays extends GLAPI implements VertexWriterTrait {
 		}
 		planes = 0;
 		length = 0;
+		instances = 0;
+		elementCount = indexCount = 0;
+		maxElement = -1;
+		deduplicated = false;
+		vbo = ibo = null; //drawn from client memory, until sent again
 		
 		return this;
 	};
 	
 	
 	protected int checkCompleteness() {
-		int shortest = length;
+		int shortest = Integer.MAX_VALUE, longest = 0;
 		
-		for (int i=0;i<planes;i++) {
-			shortest = min(counters[i], shortest);
-		}
+		instances = Integer.MAX_VALUE;
+		for (int i=0;i<planes;i++)
+			if (divisors[i]>0)
+				instances = (int) min((long) counters[i]*divisors[i], instances);
+			else {
+				shortest = min(counters[i], shortest);
+				longest = max(counters[i], longest);
+			}
+		
+		if (instances==Integer.MAX_VALUE)
+			instances = 0; //none per instance
 
-		if (shortest<length)
+		if (shortest<longest)
 			throw new IllegalStateException("Arrays not filled equally");
 		
-		return shortest;
+		if (interleaved && slots>planes)
+			layout(-1, 0); //drop the slots of planes not written this time
+		
+		return length = longest;
+	}
+	
+	
+	//the number of vertices to send, after deduplicating them, with the indices packed
+	private int prepare() {
+		int count = checkCompleteness();
+		if (maxElement>=count)
+			throw new IndexOutOfBoundsException("index "+maxElement+" of "+count+" vertices");
+		
+		if (deduplicate && !deduplicated) {
+			count = deduplicate(count);
+			deduplicated = true;
+		}
+		
+		packIndices(count);
+		return count;
+	}
+	
+	//drops the vertices repeating one before, comparing their bytes in all planes
+	private int deduplicate(int count) {
+		int sizes[] = new int[planes]; //0 for the planes per instance
+		for (int i=0;i<planes;i++)
+			sizes[i] = divisors[i]>0?0:interleaved?slotSizes[i]:attributes[i].type.dimension*types[i].sizeOf;
+		
+		int table[] = new int[Integer.highestOneBit(max(count, 1))<<2], mask = table.length-1; //open addressing, at most half full
+		Arrays.fill(table, -1);
+		
+		int remap[] = new int[count], kept = 0;
+		vertices: for (int v=0;v<count;v++) {
+			int h = 1;
+			for (int i=0;i<planes;i++)
+				for (int b=offset(i, v),e=b+sizes[i];b<e;b++)
+					h = 31*h+plane(i).get(b);
+			
+			h *= 0x9E3779B9;
+			int slot = (h^h>>>16)&mask;
+			for (;table[slot]>=0;slot=slot+1&mask)
+				if (equal(table[slot], v, sizes)) {
+					remap[v] = table[slot];
+					continue vertices;
+				}
+			
+			table[slot] = kept;
+			move(v, kept, sizes); //vertices before v are in place already
+			remap[v] = kept++;
+		}
+		
+		if (elementCount==0) { //in the order written
+			elements = remap;
+			elementCount = count;
+		} else
+			for (int k=0;k<elementCount;k++)
+				elements[k] = remap[elements[k]];
+		
+		for (int i=0;i<planes;i++)
+			if (divisors[i]==0) {
+				counters[i] = kept;
+				if (!interleaved)
+					buffers[i].position(kept*sizes[i]);
+			}
+		
+		maxElement = kept-1;
+		return length = kept;
+	}
+	
+	private ByteBuffer plane(int i) { return interleaved(i)?vertices:buffers[i]; }
+	private int offset(int i, int v) { return interleaved(i)?v*stride+slotOffsets[i]:v*attributes[i].type.dimension*types[i].sizeOf; }
+	
+	private boolean equal(int u, int v, int sizes[]) {
+		for (int i=0;i<planes;i++) {
+			ByteBuffer p = plane(i);
+			for (int a=offset(i, u),b=offset(i, v),e=b+sizes[i];b<e;a++,b++)
+				if (p.get(a)!=p.get(b))
+					return false;
+		}
+		
+		return true;
+	}
+	
+	private void move(int from, int to, int sizes[]) {
+		if (from==to)
+			return;
+		
+		for (int i=0;i<(interleaved?1:planes);i++) {
+			ByteBuffer p = interleaved?vertices:buffers[i], f = p.duplicate();
+			int size = interleaved?stride:sizes[i];
+			
+			f.limit(from*size+size).position(from*size);
+			((ByteBuffer) p.duplicate().clear().position(to*size)).put(f);
+		}
+	}
+	
+	//as unsigned bytes, shorts or ints, the smallest to hold an index to each of the vertices
+	private void packIndices(int count) {
+		indexCount = elementCount;
+		indexType = count<=1<<8?GL_UNSIGNED_BYTE:count<=1<<16?GL_UNSIGNED_SHORT:GL_UNSIGNED_INT;
+		indexSize = count<=1<<8?1:count<=1<<16?2:4;
+		
+		if (indices.capacity()<indexCount*indexSize)
+			indices = createByteBuffer( (int) ( indexCount * indexSize * GROWTH ) );
+		
+		indices.clear();
+		if (indexSize==4)
+			indices.asIntBuffer().put(elements, 0, indexCount);
+		else
+			for (int k=0;k<indexCount;k++)
+				if (indexSize==2)
+					indices.putShort(k*2, (short) elements[k]);
+				else
+					indices.put(k, (byte) elements[k]);
+		
+		indices.limit(indexCount*indexSize);
 	}
 	
 	
@@ -158,36 +493,291 @@ public class GLVertexArrays extends GLAPI implements VertexWriterTrait {
 	public void end() {
 		version++;
 		send();
-		drawArrays();
+		draw();
 	}
 	
 	public void send() {
-		checkCompleteness();
+		prepare();
 		
 		for (int i=0;i<planes;i++)
 			buffers[i].position(0);
 	}
 	
+	/**
+	 * draws the elements if indices were sent, the arrays otherwise, as many instances as were written if any attribute has a divisor
+	 */
+	public void draw() {
+		boolean elements = indexCount>0;
+		int count = elements?indexCount:checkCompleteness();
+		
+		for (int i=0;i<planes;i++)
+			if (divisors[i]>0) {
+				draw(elements, 0, count, instances);
+				return;
+			}
+		
+		draw(elements, 0, count, NOT_INSTANCED);
+	}
+	
 	public void drawArrays() {
 		drawArrays(0, checkCompleteness());
 	}
 	
+	public void drawElements() {
+		drawElements(0, indexCount);
+	}
+	
+	/**
+	 * draws the arrays. Arrays sent to a GLVertexBufferObject are drawn with a vertex array object that is built once for 
+	 * each program's attribute locations, and rebuilt only when the arrays are sent again. It stays bound after the draw
+	 */
 	public void drawArrays(int first, int count) {
+		draw(false, first, count, NOT_INSTANCED);
+	}
+	
+	/**
+	 * draws count of the indices sent, starting at first, with a vertex array object like {@link #drawArrays(int, int)}
+	 */
+	public void drawElements(int first, int count) {
+		draw(true, first, count, NOT_INSTANCED);
+	}
+	
+	/**
+	 * draws the arrays instances times, advancing the attributes with a divisor per instance
+	 */
+	public void drawArraysInstanced(int first, int count, int instances) {
+		draw(false, first, count, instances);
+	}
+	
+	/**
+	 * draws count of the indices sent, starting at first, instances times, advancing the attributes with a divisor per instance
+	 */
+	public void drawElementsInstanced(int first, int count, int instances) {
+		draw(true, first, count, instances);
+	}
+	
+	final static private int NOT_INSTANCED = -1; //drawn with glDrawArrays/Elements
+	
+	private void draw(boolean elements, int first, int count, int instances) {
+		boolean core = instances==NOT_INSTANCED || coreInstancedDraws(); //checked before touching any state
+		GLState state = GLState.current();
+		GLVertexBufferObject vbo = this.vbo;
+		if (vbo!=null)
+			vbo.bindBuffer(GL_ARRAY_BUFFER); //uploads the arrays, if they weren't yet
+		
+		VertexArrayObject vao = vbo==null?null:vertexArrayObject(state);
+		if (vao!=null) {
+			state.bindVertexArray(vao.name);
+			if (vao.version!=version || vao.buffer!=vbo.name) {
+				vertexAttribPointers(true);
+				
+				vao.version = version;
+				vao.buffer = vbo.name;
+			}
+			
+			drawCall(state, elements, first, count, instances, core);
+			return;
+		}
+		
+		if (hasVertexArrayObjects())
+			state.bindVertexArray(0); //the pointers set below must not end up in one of ours
+		
+		if (vbo==null)
+			state.bindBuffer(GL_ARRAY_BUFFER, 0); //pointers into client memory
+		
+		vertexAttribPointers(false);
+		drawCall(state, elements, first, count, instances, core);
+		
+		for (int i=0;i<planes;i++) {
+			glDisableVertexAttribArray(attributes[i].location);
+			if (divisors[i]>0)
+				vertexAttribDivisor(attributes[i].location, 0);
+		}
+	}
+	
+	//core tells glDraw*Instanced from glDraw*InstancedARB
+	private void drawCall(GLState state, boolean elements, int first, int count, int instances, boolean core) {
+		if (!elements)
+			if (instances==NOT_INSTANCED)
+				glDrawArrays(mode, first, count);
+			else
+			if (core)
+				glDrawArraysInstanced(mode, first, count, instances);
+			else
+				ARBDrawInstanced.glDrawArraysInstancedARB(mode, first, count, instances);
+		else
+		if (ibo!=null) {
+			ibo.bindBuffer(GL_ELEMENT_ARRAY_BUFFER); //into the vertex array object, if one's bound
+			if (instances==NOT_INSTANCED)
+				glDrawElements(mode, count, indexType, (long) first*indexSize);
+			else
+			if (core)
+				glDrawElementsInstanced(mode, count, indexType, (long) first*indexSize, instances);
+			else
+				ARBDrawInstanced.glDrawElementsInstancedARB(mode, count, indexType, (long) first*indexSize, instances);
+		} else {
+			state.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0); //indices from client memory
+			ByteBuffer range = (ByteBuffer) indices.duplicate().limit((first+count)*indexSize).position(first*indexSize);
+			if (instances==NOT_INSTANCED)
+				glDrawElements(mode, indexType, range);
+			else
+			if (core)
+				glDrawElementsInstanced(mode, indexType, range, instances);
+			else
+				ARBDrawInstanced.glDrawElementsInstancedARB(mode, indexType, range, instances);
+		}
+	}
+	
+	//whether instanced draws are core, rather than from ARB_draw_instanced
+	static private boolean coreInstancedDraws() {
+		GLCapabilities caps = GL.getCapabilities();
+		if (!caps.OpenGL31 && !caps.GL_ARB_draw_instanced)
+			throw new UnsupportedOperationException("Instanced draws need OpenGL 3.1 or ARB_draw_instanced");
+		
+		return caps.OpenGL31;
+	}
+	
+	//into the vbo if the arrays were sent to one, into client memory otherwise, with the divisors of all attributes or of those per instance only
+	private void vertexAttribPointers(boolean allDivisors) {
 		for (int i=0;i<planes;i++) {
-			glEnableVertexAttribArray(attributes[i].location);
-			glVertexAttribPointer(attributes[i].location, attributes[i].type.dimension, types[i].glTypeCode, normalize[i], 0, buffers[i]);
+			int location = attributes[i].location, size = attributes[i].type.dimension, type = types[i].glTypeCode;
+			int stride = interleaved(i)?this.stride:0; //0 for tightly packed planes
+			
+			glEnableVertexAttribArray(location);
+			if (vbo!=null)
+				glVertexAttribPointer(location, size, type, normalize[i], stride, offsets[i]);
+			else
+			if (interleaved(i))
+				glVertexAttribPointer(location, size, type, normalize[i], stride, (ByteBuffer) vertices.duplicate().clear().position(slotOffsets[i]));
+			else
+				glVertexAttribPointer(location, size, type, normalize[i], stride, buffers[i]);
+			
+			if (allDivisors || divisors[i]>0)
+				vertexAttribDivisor(location, divisors[i]);
 		}
+	}
+	
+	static private void vertexAttribDivisor(int location, int divisor) {
+		GLCapabilities caps = GL.getCapabilities();
+		if (caps.OpenGL33)
+			glVertexAttribDivisor(location, divisor);
+		else
+		if (caps.GL_ARB_instanced_arrays)
+			ARBInstancedArrays.glVertexAttribDivisorARB(location, divisor);
+		else
+		if (divisor!=0)
+			throw new UnsupportedOperationException("Attributes per instance need OpenGL 3.3 or ARB_instanced_arrays");
+	}
+	
+	/**
+	 * enqueues the upload of the arrays into vbo, the interleaved vertices first, then plane after plane, each at a multiple 
+	 * of 4 bytes. They are drawn from there from now on, instead of being copied from client memory on every draw, until 
+	 * they are begun anew
+	 */
+	public GLVertexArrays send(GLVertexBufferObject vbo) {
+		int count = prepare();
+		this.ibo = null; //the indices stay in client memory
 		
-		glDrawArrays(mode, 0, count);
+		ByteBuffer[] parts = new ByteBuffer[planes*2+1];
+		long[] offsets = new long[planes];
+		int n = 0, offset = 0;
+		if (interleaved) {
+			parts[n++] = (ByteBuffer) vertices.duplicate().clear().limit(offset = count*stride);
+			for (int i=0;i<planes;i++)
+				offsets[i] = slotOffsets[i];
+		}
 		
 		for (int i=0;i<planes;i++)
-			glDisableVertexAttribArray(attributes[i].location);
+			if (!interleaved(i)) {
+				if (offset%4!=0) //e.g. after a plane of an odd number of vec3b
+					parts[n++] = (ByteBuffer) PADDING.duplicate().limit(pad(offset, 4)-offset);
+				
+				offset = pad(offset, 4);
+				int bytes = counters[i]*attributes[i].type.dimension*types[i].sizeOf; //instances for the planes per instance
+				parts[n++] = (ByteBuffer) buffers[i].duplicate().clear().limit(bytes);
+				offsets[i] = offset;
+				offset += bytes;
+			}
+		
+		vbo.sendBufferData(Arrays.copyOf(parts, n));
+		this.offsets = offsets;
+		this.vbo = vbo;
+		version++; //the vertex array objects point into the previous layout
+		return this;
 	}
 	
+	/**
+	 * enqueues the upload of the arrays into vbo like {@link #send(GLVertexBufferObject)}, and the upload of the indices into ibo
+	 */
+	public GLVertexArrays send(GLVertexBufferObject vbo, GLVertexBufferObject ibo) {
+		send(vbo);
+		ibo.sendBufferData(indices.duplicate());
+		this.ibo = ibo;
+		return this;
+	}
+	
+	final static private ByteBuffer PADDING = createByteBuffer(4); //zeros between planes in a vbo
 	
-//	public void send(GLVertexBufferObject vbo) {
-//		send(); ///XXX VertexSource?
-//	}
+	static private boolean hasVertexArrayObjects() {
+		GLCapabilities caps = GL.getCapabilities();
+		return caps.OpenGL30 || caps.GL_ARB_vertex_array_object;
+	}
+	
+	//the vertex array object of the current attribute locations in the given context, null if there are none 
+	private VertexArrayObject vertexArrayObject(GLState state) {
+		if (!hasVertexArrayObjects())
+			return null;
+		
+		int cached = 0;
+		search: for (int j=vertexArrayObjects.size()-1;j>=0;j--) {
+			VertexArrayObject vao = vertexArrayObjects.get(j);
+			if (vao.state!=state)
+				continue;
+			
+			cached++;
+			if (vao.locations.length!=planes)
+				continue;
+			
+			for (int i=0;i<planes;i++)
+				if (vao.locations[i]!=attributes[i].location)
+					continue search;
+			
+			if (j<vertexArrayObjects.size()-1) //most recently used last
+				vertexArrayObjects.add(vertexArrayObjects.remove(j));
+			
+			return vao;
+		}
+		
+		if (cached>=MAX_VERTEX_ARRAY_OBJECTS) //drop the least recently used one of this context
+			for (int j=0;j<vertexArrayObjects.size();j++)
+				if (vertexArrayObjects.get(j).state==state) {
+					deleteVertexArrayObject(vertexArrayObjects.remove(j));
+					break;
+				}
+		
+		int[] locations = new int[planes];
+		for (int i=0;i<planes;i++)
+			locations[i] = attributes[i].location;
+		
+		VertexArrayObject vao = new VertexArrayObject(state, glGenVertexArrays(), locations);
+		vertexArrayObjects.add(vao);
+		return vao;
+	}
+	
+	static private void deleteVertexArrayObject(VertexArrayObject vao) {
+		glDeleteVertexArrays(vao.name);
+		vao.state.vertexArrayDeleted(vao.name);
+	}
+	
+	/**
+	 * deletes the vertex array objects built for drawing in the current context
+	 */
+	public void deleteVertexArrayObjects() {
+		GLState state = GLState.current();
+		for (int j=vertexArrayObjects.size()-1;j>=0;j--)
+			if (vertexArrayObjects.get(j).state==state)
+				deleteVertexArrayObject(vertexArrayObjects.remove(j));
+	}
 	
 	///////////////////////////
 	
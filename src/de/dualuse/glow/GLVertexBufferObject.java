@@ -1,5 +1,168 @@
 package de.dualuse.glow;
 
-public class GLVertexBufferObject {
+import static java.lang.Math.*;
+import static org.lwjgl.opengl.GL15.*;
 
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+/**
+ * <h2>Vertex Buffer Object</h2>
+ *
+ * <pre>
+ * - vertex data in GPU memory, updates are sent from any thread and run when the buffer is bound next, like the other wrappers
+ * - STATIC data is specified once and drawn many times, DYNAMIC data is changed in ranges now and then, STREAM data is replaced every frame
+ * - a replacement of all data keeps the store if it's of the same size, except for STREAM buffers, whose store is orphaned
+ *   (re-specified without data, then filled), such that the GPU may still draw from the previous one while the next is filled
+ * - a replacement drops pending updates of the range it covers
+ * - data is copied into staging buffers on send, the caller may reuse its buffers right away
+ * - staging buffers done with on the GL thread are handed back to the sending thread's stripe of the pool on its next send,
+ *   such that a producer thread streaming data reuses them instead of allocating a new one each time
+ * </pre>
+ */
+public class GLVertexBufferObject extends GLObjectWrapper {
+	static public enum Usage {
+		STATIC(GL_STATIC_DRAW),
+		DYNAMIC(GL_DYNAMIC_DRAW),
+		STREAM(GL_STREAM_DRAW);
+
+		final int usage;
+		private Usage(int usage) { this.usage = usage; }
+	}
+
+	final public Usage usage;
+
+	private StagingBufferPool stagingBuffers = StagingBufferPool.DEFAULT;
+	private final Queue<ByteBuffer> returned = new ConcurrentLinkedQueue<>(); //staging buffers done with, released on the next send
+	private volatile long size = 0; //as of the last replacement sent
+	private long storeSize = -1; //of the GL object's store, touched on the GL thread only
+
+	public GLVertexBufferObject() { this(Usage.STATIC); }
+	public GLVertexBufferObject(Usage usage) { this.usage = usage; }
+
+	@Override protected int generateObject() { return glGenBuffers(); }
+	@Override protected void bindObject(int target, int name) { GLState.current().bindBuffer(target, name); }
+	@Override protected int getObjectBinding(int target) { return GLState.current().getBufferBinding(target); }
+	@Override protected void deleteObject(int name) { glDeleteBuffers(name); GLState.current().bufferDeleted(name); storeSize = -1; }
+
+	public boolean bindBuffer(int target) { return bind(target); }
+	public void deleteBuffer() { 
+		delete(); 
+		for (ByteBuffer b = returned.poll(); b!=null; b = returned.poll())
+			stagingBuffers.release(b);
+	}
+
+	/**
+	 * @return size of the data in bytes, as of the last replacement sent
+	 */
+	public long getSize() { return size; }
+
+	/**
+	 * copy data to be sent into staging buffers from the given pool
+	 * @param pool may be shared with GLTextures, defaults to {@link StagingBufferPool#DEFAULT}
+	 */
+	public GLVertexBufferObject setStagingBuffers(StagingBufferPool pool) {
+		stagingBuffers = pool;
+		return this;
+	}
+
+	///////////////// Updates ///////////////////////////
+
+	/**
+	 * a pending write of the range offset..offset+size, or of all the data if replace is set.
+	 * A replacement supersedes all pending writes, a write the pending ones within its range
+	 */
+	private class Write implements Coalescing {
+		final boolean replace;
+		final long offset, size;
+		final ByteBuffer data; //a staging buffer, null to specify the store only
+		final AtomicBoolean claimed = new AtomicBoolean(); //by the GL thread running it, or by a newer write dropping it
+
+		Write(boolean replace, long offset, long size, ByteBuffer data) {
+			this.replace = replace; this.offset = offset; this.size = size; this.data = data;
+		}
+
+		@Override public void accept(int target) {
+			if (!claimed.compareAndSet(false, true)) //dropped by a newer one meanwhile, its staging buffer is gone
+				return;
+
+			try {
+				if (replace && (usage==Usage.STREAM || storeSize!=size || data==null)) { //orphan the store, or make it fit
+					glBufferData(target, size, usage.usage);
+					storeSize = size;
+				}
+
+				if (data!=null)
+					glBufferSubData(target, offset, data);
+			} finally {
+				if (data!=null) //done with the staging buffer
+					returned.add(data);
+			}
+		}
+
+		@Override public boolean supersedes(IntConsumer pending) {
+			if (!(pending instanceof Write))
+				return false;
+
+			Write p = (Write)pending;
+			return replace || !p.replace && offset<=p.offset && p.offset+p.size<=offset+size;
+		}
+
+		@Override public void superseded() {
+			if (claimed.compareAndSet(false, true) && data!=null) //not started, and not released already
+				returned.add(data);
+		}
+	}
+
+	//copies the remaining bytes of the parts one after the other into a staging buffer
+	private ByteBuffer stage(ByteBuffer... parts) {
+		int size = 0;
+		for (ByteBuffer part: parts)
+			size += part.remaining();
+
+		for (ByteBuffer b = returned.poll(); b!=null; b = returned.poll()) //into this thread's stripe, to be acquired again right below
+			stagingBuffers.release(b);
+
+		ByteBuffer staging = stagingBuffers.acquire(max(1, size));
+		for (ByteBuffer part: parts)
+			staging.put(part.duplicate());
+
+		staging.flip();
+		return staging;
+	}
+
+	/**
+	 * enqueues the replacement of all data with the remaining bytes of data
+	 */
+	public GLVertexBufferObject sendBufferData(ByteBuffer data) {
+		return sendBufferData(new ByteBuffer[] { data });
+	}
+
+	/**
+	 * enqueues the replacement of all data with the remaining bytes of the parts, one after the other
+	 */
+	public GLVertexBufferObject sendBufferData(ByteBuffer... parts) {
+		ByteBuffer staged = stage(parts);
+		size = staged.remaining();
+		return send( new Write(true, 0, size, staged) );
+	}
+
+	/**
+	 * enqueues the (re-)specification of a store of the given size, without data
+	 */
+	public GLVertexBufferObject sendBufferData(long size) {
+		this.size = size;
+		return send( new Write(true, 0, size, null) );
+	}
+
+	/**
+	 * enqueues the replacement of the range starting at offset with the remaining bytes of data
+	 */
+	public GLVertexBufferObject sendBufferSubData(long offset, ByteBuffer data) {
+		ByteBuffer staged = stage(data);
+		return send( new Write(false, offset, staged.remaining(), staged) );
+	}
 }
@@ -0,0 +1,14 @@
+package de.dualuse.glow;
+
+interface IndexWriter {
+	public IndexWriter index(int i);
+	public IndexWriter line(int a, int b);
+	public IndexWriter triangle(int a, int b, int c);
+	public IndexWriter quad(int a, int b, int c, int d);
+	
+	public VertexWriter attribute(GLAttribute a);
+	
+	public void send();
+	public void end();
+	
+}
@@ -0,0 +1,306 @@
+package de.dualuse.glow;
+
+import static java.lang.Math.*;
+import static org.lwjgl.opengl.ARBTextureCompressionBPTC.*;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL43.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <h2>Texture files mapped into memory</h2>
+ *
+ * <pre>
+ * - KTX (1.1) and KTX2 files of 2D textures, including their mip levels, uncompressed or block compressed
+ * - raw pixel dumps: "GLOWRAW1", then width, height, format, type, depth (bits per pixel) and number of levels as little endian ints,
+ *   followed by the levels, each max(1, width&gt;&gt;n) x max(1, height&gt;&gt;n), lines padded to 4 bytes, as written by {@link #writeRaw(Path, TextureSource...)}
+ * - the levels are DirectTextureSources on the mapped file, uploaded without intermediate copies whenever their line size
+ *   matches GL's, grabbed line by line otherwise
+ * - nothing is read before it is uploaded, the operating system pages the file in on demand
+ * </pre>
+ */
+public class MappedTextureFile {
+	final static private byte[] KTX1 = { (byte)0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte)0xBB, '\r', '\n', 0x1A, '\n' };
+	final static private byte[] KTX2 = { (byte)0xAB, 'K', 'T', 'X', ' ', '2', '0', (byte)0xBB, '\r', '\n', 0x1A, '\n' };
+	final static private byte[] RAW = "GLOWRAW1".getBytes(StandardCharsets.US_ASCII);
+
+	final static private int RAW_HEADER = 32, RAW_ALIGNMENT = 4;
+
+	/**
+	 * internal format stored in the file, e.g. an sRGB one, or the one matching the pixel format if the file tells none
+	 */
+	public final int internalformat;
+
+	private final Level[] levels;
+
+	private MappedTextureFile(int internalformat, Level[] levels) {
+		this.internalformat = internalformat;
+		this.levels = levels;
+	}
+
+	public int getLevelCount() { return levels.length; }
+	public TextureSource getLevel(int level) { return levels[level]; }
+	public TextureSource[] getLevels() { return levels.clone(); }
+
+	/**
+	 * Maps a KTX, KTX2 or raw file, telling them apart by their identifier
+	 * @throws IOException if the file can't be read, or is none of the supported kind
+	 */
+	static public MappedTextureFile open(Path path) throws IOException {
+		ByteBuffer file;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size()>Integer.MAX_VALUE)
+				throw new IOException(path+" exceeds 2GB");
+
+			file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		if (startsWith(file, KTX1))
+			return ktx1(file);
+		if (startsWith(file, KTX2))
+			return ktx2(file);
+		if (startsWith(file, RAW))
+			return raw(file);
+
+		throw new IOException(path+" is neither KTX, KTX2 nor raw");
+	}
+
+	/**
+	 * Writes the given levels as a raw pixel dump, to be mapped with {@link #open(Path)}
+	 */
+	static public void writeRaw(Path path, TextureSource... levels) throws IOException {
+		TextureSource base = levels[0];
+		int bytesPerPixel = base.getDepth()/8;
+
+		ByteBuffer header = ByteBuffer.allocate(RAW_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(RAW).putInt(base.getWidth()).putInt(base.getHeight()).putInt(base.getFormat()).putInt(base.getType()).putInt(base.getDepth()).putInt(levels.length);
+		header.flip();
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining())
+				channel.write(header);
+
+			for (int n=0;n<levels.length;n++) {
+				int width = max(1, base.getWidth()>>n), height = max(1, base.getHeight()>>n);
+				int bytesPerLine = pad(width*bytesPerPixel, RAW_ALIGNMENT);
+
+				ByteBuffer pixels = ByteBuffer.allocateDirect(bytesPerLine*height);
+				levels[n].grab(0, 0, width, height, pixels, 0, bytesPerLine);
+				pixels.clear();
+				while (pixels.hasRemaining())
+					channel.write(pixels);
+			}
+		}
+	}
+
+	///////////////////
+
+	static private MappedTextureFile raw(ByteBuffer file) throws IOException {
+		ByteBuffer b = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int width = b.getInt(8), height = b.getInt(12), format = b.getInt(16), type = b.getInt(20), depth = b.getInt(24), count = b.getInt(28);
+
+		Level[] levels = new Level[count];
+		for (int n=0, offset=RAW_HEADER;n<count;n++) {
+			int w = max(1, width>>n), h = max(1, height>>n), bytesPerLine = pad(w*depth/8, RAW_ALIGNMENT);
+			levels[n] = new Level(slice(file, offset, bytesPerLine*h), w, h, depth, format, type, bytesPerLine);
+			offset += bytesPerLine*h;
+		}
+
+		return new MappedTextureFile(GLTexture.internalFormatForFormat(format), levels);
+	}
+
+	static private MappedTextureFile ktx1(ByteBuffer file) throws IOException {
+		ByteBuffer b = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (b.getInt(12)!=0x04030201)
+			b.order(ByteOrder.BIG_ENDIAN);
+
+		int type = b.getInt(16), typeSize = b.getInt(20), format = b.getInt(24), internalformat = b.getInt(28);
+		int width = b.getInt(36), height = max(1, b.getInt(40));
+		int count = max(1, b.getInt(56)), keyValueBytes = b.getInt(60);
+
+		if (b.getInt(44)>1 || b.getInt(48)>0 || b.getInt(52)>1)
+			throw new IOException("only plain 2D textures are supported, no 3D, array or cube map textures");
+
+		Level[] levels = new Level[count];
+		for (int n=0, offset=64+keyValueBytes;n<count;n++) {
+			int w = max(1, width>>n), h = max(1, height>>n), imageSize = b.getInt(offset);
+			ByteBuffer pixels = slice(file, offset+4, imageSize);
+
+			if (type==0) //compressed
+				levels[n] = compressed(pixels, w, h, internalformat);
+			else {
+				int depth = depth(format, type, typeSize);
+				levels[n] = new Level(pixels, w, h, depth, format, type, pad(w*depth/8, 4)); //lines are padded to 4 bytes
+			}
+
+			offset += 4+pad(imageSize, 4);
+		}
+
+		return new MappedTextureFile(internalformat, levels);
+	}
+
+	static private MappedTextureFile ktx2(ByteBuffer file) throws IOException {
+		ByteBuffer b = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int vkFormat = b.getInt(12), width = b.getInt(20), height = max(1, b.getInt(24));
+		int count = max(1, b.getInt(40)), supercompression = b.getInt(44);
+
+		if (b.getInt(28)>1 || b.getInt(32)>0 || b.getInt(36)>1)
+			throw new IOException("only plain 2D textures are supported, no 3D, array or cube map textures");
+		if (supercompression!=0)
+			throw new IOException("supercompressed KTX2 files are not supported");
+
+		int format, type, depth, internalformat;
+		switch (vkFormat) {
+		case 9: format = GL_RED; type = GL_UNSIGNED_BYTE; depth = 8; internalformat = GL_R8; break; //VK_FORMAT_R8_UNORM
+		case 16: format = GL_RG; type = GL_UNSIGNED_BYTE; depth = 16; internalformat = GL_RG8; break; //VK_FORMAT_R8G8_UNORM
+		case 23: format = GL_RGB; type = GL_UNSIGNED_BYTE; depth = 24; internalformat = GL_RGB8; break; //VK_FORMAT_R8G8B8_UNORM
+		case 30: format = GL_BGR; type = GL_UNSIGNED_BYTE; depth = 24; internalformat = GL_RGB8; break; //VK_FORMAT_B8G8R8_UNORM
+		case 37: format = GL_RGBA; type = GL_UNSIGNED_BYTE; depth = 32; internalformat = GL_RGBA8; break; //VK_FORMAT_R8G8B8A8_UNORM
+		case 44: format = GL_BGRA; type = GL_UNSIGNED_BYTE; depth = 32; internalformat = GL_RGBA8; break; //VK_FORMAT_B8G8R8A8_UNORM
+
+		case 131: format = type = depth = 0; internalformat = GL_COMPRESSED_RGB_S3TC_DXT1_EXT; break; //VK_FORMAT_BC1_RGB_UNORM_BLOCK
+		case 133: format = type = depth = 0; internalformat = GL_COMPRESSED_RGBA_S3TC_DXT1_EXT; break; //VK_FORMAT_BC1_RGBA_UNORM_BLOCK
+		case 135: format = type = depth = 0; internalformat = GL_COMPRESSED_RGBA_S3TC_DXT3_EXT; break; //VK_FORMAT_BC2_UNORM_BLOCK
+		case 137: format = type = depth = 0; internalformat = GL_COMPRESSED_RGBA_S3TC_DXT5_EXT; break; //VK_FORMAT_BC3_UNORM_BLOCK
+		case 145: format = type = depth = 0; internalformat = GL_COMPRESSED_RGBA_BPTC_UNORM_ARB; break; //VK_FORMAT_BC7_UNORM_BLOCK
+		case 147: format = type = depth = 0; internalformat = GL_COMPRESSED_RGB8_ETC2; break; //VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK
+		case 151: format = type = depth = 0; internalformat = GL_COMPRESSED_RGBA8_ETC2_EAC; break; //VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK
+		default:
+			throw new IOException("VkFormat "+vkFormat+" is not supported");
+		}
+
+		Level[] levels = new Level[count];
+		for (int n=0;n<count;n++) {
+			int w = max(1, width>>n), h = max(1, height>>n), index = 80+n*24;
+			ByteBuffer pixels = slice(file, (int)b.getLong(index), (int)b.getLong(index+8));
+
+			if (depth==0)
+				levels[n] = compressed(pixels, w, h, internalformat);
+			else
+				levels[n] = new Level(pixels, w, h, depth, format, type, w*depth/8); //lines are tightly packed
+		}
+
+		return new MappedTextureFile(internalformat, levels);
+	}
+
+	static private Level compressed(ByteBuffer pixels, int width, int height, int internalformat) throws IOException {
+		int bytesPerBlock = GLTexture.bytesPerBlock(internalformat);
+		if (bytesPerBlock==0)
+			throw new IOException("compressed format "+internalformat+" is not supported");
+
+		return new CompressedLevel(pixels, width, height, internalformat, bytesPerBlock);
+	}
+
+	static private int depth(int format, int type, int typeSize) throws IOException {
+		switch (type) {
+		case GL_UNSIGNED_INT_8_8_8_8:
+		case GL_UNSIGNED_INT_8_8_8_8_REV: return 32;
+		case GL_UNSIGNED_SHORT_5_6_5:
+		case GL_UNSIGNED_SHORT_5_6_5_REV:
+		case GL_UNSIGNED_SHORT_5_5_5_1:
+		case GL_UNSIGNED_SHORT_1_5_5_5_REV: return 16;
+		}
+
+		switch (format) {
+		case GL_RED:
+		case GL_ALPHA:
+		case GL_LUMINANCE: return typeSize*8;
+		case GL_RG:
+		case GL_LUMINANCE_ALPHA: return typeSize*16;
+		case GL_RGB:
+		case GL_BGR: return typeSize*24;
+		case GL_RGBA:
+		case GL_BGRA: return typeSize*32;
+		default:
+			throw new IOException("format "+format+" is not supported");
+		}
+	}
+
+	static private boolean startsWith(ByteBuffer file, byte[] identifier) {
+		if (file.capacity()<identifier.length)
+			return false;
+
+		for (int i=0;i<identifier.length;i++)
+			if (file.get(i)!=identifier[i])
+				return false;
+
+		return true;
+	}
+
+	static private ByteBuffer slice(ByteBuffer file, int offset, int length) throws IOException {
+		if (offset<0 || length<0 || offset+length>file.capacity())
+			throw new IOException("truncated file");
+
+		ByteBuffer b = file.duplicate();
+		b.limit(offset+length).position(offset);
+		return b.slice();
+	}
+
+	static private int pad(int value, int granularity) {
+		return (value+granularity-1)/granularity*granularity;
+	}
+
+	///////////////////
+
+	/**
+	 * A level of a mapped file
+	 */
+	static public class Level implements DirectTextureSource {
+		final ByteBuffer pixels;
+		final int width, height, depth, format, type, bytesPerLine;
+		final int blockWidth, blockHeight, bytesPerBlock; //a pixel is a 1 x 1 block for uncompressed levels
+
+		private Level(ByteBuffer pixels, int width, int height, int depth, int format, int type, int bytesPerLine) {
+			this(pixels, width, height, depth, format, type, bytesPerLine, 1, 1, depth/8);
+		}
+
+		private Level(ByteBuffer pixels, int width, int height, int depth, int format, int type, int bytesPerLine, int blockWidth, int blockHeight, int bytesPerBlock) {
+			this.pixels = pixels;
+			this.width = width; this.height = height;
+			this.depth = depth; this.format = format; this.type = type;
+			this.bytesPerLine = bytesPerLine;
+			this.blockWidth = blockWidth; this.blockHeight = blockHeight; this.bytesPerBlock = bytesPerBlock;
+		}
+
+		@Override
+		public void grab(int x, int y, int width, int height, ByteBuffer to, int offset, int bytesPerLine) {
+			int bx = x/blockWidth, by = y/blockHeight;
+			int length = ((x+width+blockWidth-1)/blockWidth-bx)*bytesPerBlock, lines = (y+height+blockHeight-1)/blockHeight-by;
+
+			ByteBuffer from = pixels.duplicate();
+			for (int j=0, o=by*this.bytesPerLine+bx*bytesPerBlock;j<lines;j++, o+=this.bytesPerLine) {
+				from.limit(o+length).position(o);
+				to.position(offset+j*bytesPerLine);
+				to.put(from);
+			}
+		}
+
+		@Override public ByteBuffer getBuffer() { return pixels; }
+		@Override public int getBytesPerLine() { return bytesPerLine; }
+
+		@Override public int getWidth() { return width; }
+		@Override public int getHeight() { return height; }
+		@Override public int getDepth() { return depth; }
+		@Override public int getFormat() { return format; }
+		@Override public int getType() { return type; }
+	}
+
+	static private class CompressedLevel extends Level implements CompressedTextureSource {
+		private CompressedLevel(ByteBuffer pixels, int width, int height, int internalformat, int bytesPerBlock) {
+			super(pixels, width, height, bytesPerBlock/2, internalformat, 0, (width+3)/4*bytesPerBlock, 4, 4, bytesPerBlock);
+		}
+
+		@Override public int getBlockWidth() { return blockWidth; }
+		@Override public int getBlockHeight() { return blockHeight; }
+		@Override public int getBytesPerBlock() { return bytesPerBlock; }
+	}
+}
@@ -0,0 +1,39 @@
+package de.dualuse.glow;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range of rows into bands of 16 rows for the tasks of a fork join pool, for the mipmap filters,
+ * the block compressor and the TextureSources converting pixels in parallel
+ */
+public class ParallelRows extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	final static private int ROWS_PER_TASK = 16;
+
+	/**
+	 * processes the rows from (inclusive) to (exclusive)
+	 */
+	public interface Band {
+		void rows(int from, int to);
+	}
+
+	final int from, to;
+	final Band band;
+
+	public ParallelRows(int from, int to, Band band) {
+		this.from = from; this.to = to;
+		this.band = band;
+	}
+
+	@Override
+	protected void compute() {
+		if (to-from<=ROWS_PER_TASK) {
+			band.rows(from, to);
+			return;
+		}
+
+		int half = (from+to)>>>1;
+		invokeAll(new ParallelRows(from, half, band), new ParallelRows(half, to, band));
+	}
+}
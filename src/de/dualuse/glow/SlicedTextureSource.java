@@ -0,0 +1,19 @@
+package de.dualuse.glow;
+
+/**
+ * The slices of a volume (e.g. a CT stack or a LUT cube) or the layers of an array texture, uploaded with
+ * {@link GLTexture#sendTexImage3D(int, int, SlicedTextureSource)} into GL_TEXTURE_3D or GL_TEXTURE_2D_ARRAY.
+ * All slices are of the same size, format and type. Slices are asked for when they are about to be uploaded,
+ * possibly more than once, such that they may be loaded lazily.
+ */
+public interface SlicedTextureSource {
+	public int getSlices();
+	public TextureSource getSlice(int z);
+
+	static public SlicedTextureSource of(TextureSource... slices) {
+		return new SlicedTextureSource() {
+			@Override public int getSlices() { return slices.length; }
+			@Override public TextureSource getSlice(int z) { return slices[z]; }
+		};
+	}
+}
@@ -0,0 +1,178 @@
+package de.dualuse.glow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * <h2>Pool of direct staging buffers for texture uploads</h2>
+ *
+ * <pre>
+ * - one stripe of free buffers per thread, uploads from several render threads never contend
+ * - buffers are bucketed in size classes of a quarter power of two, wasting 25% at most
+ * - buffers bigger than maxBufferSize are never pooled, they are handed to the garbage collector on release
+ * - each thread keeps at most maxPooledBytes, size classes idle for longer than maxIdleMillis are trimmed
+ * - buffers may be released on a different thread than they were acquired on, they join that thread's stripe
+ * </pre>
+ */
+public class StagingBufferPool {
+	final static public int DEFAULT_MAX_POOLED_BYTES = 32*1024*1024; // 32MB per thread
+	final static public int DEFAULT_MAX_BUFFER_SIZE = 16*1024*1024; // 16MB, a 2k x 2k RGBA image
+	final static public long DEFAULT_MAX_IDLE_MILLIS = 10000;
+
+	final static public StagingBufferPool DEFAULT = new StagingBufferPool();
+
+	final static private int MIN_SHIFT = 12, MAX_SHIFT = 30; // 4kB .. 1GB
+	final static private int STEPS = 4; // size classes per power of two
+	final static private int CLASSES = (MAX_SHIFT-MIN_SHIFT)*STEPS+1;
+
+	public volatile int maxPooledBytes;
+	public volatile int maxBufferSize;
+	public volatile long maxIdleMillis;
+
+	private final ThreadLocal<Stripe> stripes = ThreadLocal.withInitial(Stripe::new);
+
+	public StagingBufferPool() {
+		this(DEFAULT_MAX_POOLED_BYTES, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_IDLE_MILLIS);
+	}
+
+	public StagingBufferPool(int maxPooledBytes, int maxBufferSize, long maxIdleMillis) {
+		this.maxPooledBytes = maxPooledBytes;
+		this.maxBufferSize = maxBufferSize;
+		this.maxIdleMillis = maxIdleMillis;
+	}
+
+	///////////////////
+
+	static private class Stripe {
+		@SuppressWarnings("unchecked")
+		final ArrayDeque<ByteBuffer>[] free = new ArrayDeque[CLASSES];
+		final long[] lastUse = new long[CLASSES];
+		long pooled = 0, lastTrim = System.nanoTime();
+
+		ByteBuffer poll(int index) {
+			ByteBuffer b = free[index]==null?null:free[index].poll();
+			if (b!=null)
+				pooled -= b.capacity();
+
+			lastUse[index] = System.nanoTime();
+			return b;
+		}
+
+		void drop(int index) {
+			for (ByteBuffer b: free[index])
+				pooled -= b.capacity();
+
+			free[index].clear();
+		}
+
+		//drops whole size classes, least recently used first, until the pooled bytes fit into the limit
+		void shrink(long limit) {
+			while (pooled>limit) {
+				int oldest = -1;
+				for (int i=0;i<CLASSES;i++)
+					if (free[i]!=null && !free[i].isEmpty() && (oldest<0 || lastUse[i]<lastUse[oldest]))
+						oldest = i;
+
+				if (oldest<0)
+					return;
+
+				drop(oldest);
+			}
+		}
+
+		void trimIdle(long now, long maxIdleNanos) {
+			lastTrim = now;
+			for (int i=0;i<CLASSES;i++)
+				if (free[i]!=null && now-lastUse[i]>maxIdleNanos)
+					drop(i);
+		}
+	}
+
+	static int sizeClass(int size) {
+		if (size<=1<<MIN_SHIFT)
+			return 0;
+
+		int k = 31-Integer.numberOfLeadingZeros(size-1); // 2^k < size <= 2^(k+1)
+		int step = 1<<(k-2); // quarter of the power of two
+		return (k-MIN_SHIFT)*STEPS + (size-1-(1<<k))/step + 1;
+	}
+
+	static int classCapacity(int index) {
+		if (index==0)
+			return 1<<MIN_SHIFT;
+
+		int k = (index-1)/STEPS+MIN_SHIFT;
+		return (1<<k) + ((index-1)%STEPS+1)*(1<<(k-2));
+	}
+
+	static private boolean isPoolable(int size, int maxBufferSize) {
+		return size<=maxBufferSize && size<=1<<MAX_SHIFT;
+	}
+
+	static private ByteBuffer allocate(int capacity) {
+		return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+	}
+
+	///////////////////
+
+	/**
+	 * Hands out a cleared, native ordered direct buffer with at least size bytes capacity
+	 * @param size minimum capacity
+	 * @return a pooled or freshly allocated buffer, to be handed back with {@link #release(ByteBuffer)}
+	 */
+	public ByteBuffer acquire(int size) {
+		if (!isPoolable(size, maxBufferSize))
+			return allocate(size);
+
+		int index = sizeClass(size);
+		ByteBuffer b = stripes.get().poll(index);
+
+		return b==null?allocate(classCapacity(index)):(ByteBuffer)b.clear();
+	}
+
+	/**
+	 * Returns a buffer to the calling thread's stripe, or drops it if it is too big or the stripe is full
+	 * @param b a buffer previously obtained from {@link #acquire(int)}
+	 */
+	public void release(ByteBuffer b) {
+		int capacity = b.capacity();
+		if (!isPoolable(capacity, maxBufferSize) || capacity>maxPooledBytes)
+			return;
+
+		int index = sizeClass(capacity);
+		if (classCapacity(index)!=capacity) //not one of ours
+			return;
+
+		Stripe s = stripes.get();
+
+		long now = System.nanoTime(), maxIdleNanos = maxIdleMillis*1000000;
+		if (now-s.lastTrim>maxIdleNanos)
+			s.trimIdle(now, maxIdleNanos);
+
+		s.shrink(maxPooledBytes-capacity);
+		if (s.pooled+capacity>maxPooledBytes)
+			return;
+
+		if (s.free[index]==null)
+			s.free[index] = new ArrayDeque<>();
+
+		s.free[index].push(b);
+		s.pooled += capacity;
+		s.lastUse[index] = now;
+	}
+
+	/**
+	 * Drops all buffers pooled by the calling thread
+	 */
+	public void trim() {
+		stripes.get().shrink(0);
+	}
+
+	/**
+	 * @return number of bytes pooled by the calling thread
+	 */
+	public long getPooledBytes() {
+		return stripes.get().pooled;
+	}
+}
@@ -0,0 +1,359 @@
+package de.dualuse.glow;
+
+import static java.lang.Math.*;
+import static org.lwjgl.opengl.ARBTextureCompressionBPTC.*;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <h2>Block compression of TextureSources on the CPU</h2>
+ *
+ * <pre>
+ * - turns sources of one byte per channel (RGB, RGBA, BGR, BGRA, LUMINANCE, LUMINANCE_ALPHA) into 4x4 blocks,
+ *   also RGBA and BGRA packed into ints of 8_8_8_8(_REV), as the AWT and SWT sources provide them
+ * - alpha is taken as opaque if the source's internal format has none, e.g. for the unused byte of TYPE_INT_RGB
+ * - rows of blocks are spread over the tasks of a fork join pool
+ * - endpoints are the extreme pixels along the principal axis of a block's colors, no iterative refinement, favouring speed
+ * - BC1 (DXT1, 8:1 for RGBA) for opaque images, BC3 (DXT5, 4:1) with a separate alpha ramp, BC7 in mode 6 (4:1),
+ *   one RGBA ramp of 16 steps, which handles smooth gradients a lot better than BC1/BC3
+ * </pre>
+ */
+public class TextureCompressor {
+	public enum Format {
+		BC1(GL_COMPRESSED_RGB_S3TC_DXT1_EXT, 8),
+		BC3(GL_COMPRESSED_RGBA_S3TC_DXT5_EXT, 16),
+		BC7(GL_COMPRESSED_RGBA_BPTC_UNORM_ARB, 16);
+
+		public final int internalformat, bytesPerBlock;
+
+		private Format(int internalformat, int bytesPerBlock) {
+			this.internalformat = internalformat;
+			this.bytesPerBlock = bytesPerBlock;
+		}
+	}
+
+	final static private int[] BC7_WEIGHTS = { 0, 4, 9, 13, 17, 21, 26, 30, 34, 38, 43, 47, 51, 55, 60, 64 };
+
+	/**
+	 * Compresses the source on the common fork join pool
+	 * @throws IllegalArgumentException if the source is not one byte per channel, or four bytes packed in an int
+	 */
+	static public Blocks compress(TextureSource src, Format format) {
+		return compress(src, format, ForkJoinPool.commonPool());
+	}
+
+	static public Blocks compress(TextureSource src, Format format, ForkJoinPool pool) {
+		//packed ints hold the channels in reverse order in memory, on little endian machines for 8_8_8_8, on big endian ones for 8_8_8_8_REV
+		boolean reversed;
+		switch (src.getType()) {
+		case GL_UNSIGNED_BYTE: reversed = false; break;
+		case GL_UNSIGNED_INT_8_8_8_8: reversed = ByteOrder.nativeOrder()==ByteOrder.LITTLE_ENDIAN; break;
+		case GL_UNSIGNED_INT_8_8_8_8_REV: reversed = ByteOrder.nativeOrder()==ByteOrder.BIG_ENDIAN; break;
+		default:
+			throw new IllegalArgumentException("type "+src.getType()+" is not one byte per channel");
+		}
+
+		if (src.getType()!=GL_UNSIGNED_BYTE && src.getFormat()!=GL_RGBA && src.getFormat()!=GL_BGRA)
+			throw new IllegalArgumentException("format "+src.getFormat()+" is not four channels packed in an int");
+
+		//offsets of red, green, blue and alpha within a pixel, -1 for opaque
+		int[] channels;
+		switch (src.getFormat()) {
+		case GL_RGB: channels = new int[] { 0, 1, 2, -1 }; break;
+		case GL_BGR: channels = new int[] { 2, 1, 0, -1 }; break;
+		case GL_RGBA: channels = new int[] { 0, 1, 2, 3 }; break;
+		case GL_BGRA: channels = new int[] { 2, 1, 0, 3 }; break;
+		case GL_LUMINANCE: channels = new int[] { 0, 0, 0, -1 }; break;
+		case GL_LUMINANCE_ALPHA: channels = new int[] { 0, 0, 0, 1 }; break;
+		default:
+			throw new IllegalArgumentException("format "+src.getFormat()+" is not supported");
+		}
+
+		for (int c=0;c<4;c++)
+			if (reversed && channels[c]>=0)
+				channels[c] = 3-channels[c];
+
+		switch (src.getInternalFormat()) {
+		case GL_RGB:
+		case GL_RGB8:
+		case GL_LUMINANCE:
+			channels[3] = -1; //whatever's in the alpha byte isn't part of the image
+		}
+
+		int width = src.getWidth(), height = src.getHeight(), bytesPerPixel = src.getDepth()/8;
+		byte[] pixels = new byte[width*height*bytesPerPixel];
+		src.grab(0, 0, width, height, ByteBuffer.wrap(pixels), 0, width*bytesPerPixel);
+
+		Blocks blocks = new Blocks(format, width, height);
+		byte[] out = blocks.data;
+
+		pool.invoke(new ParallelRows(0, blocks.rows, (by0, by1) -> {
+			int[] block = new int[64]; //r, g, b, a of 16 pixels
+
+			for (int by=by0;by<by1;by++)
+				for (int bx=0;bx<blocks.columns;bx++) {
+					for (int j=0, k=0;j<4;j++)
+						for (int i=0;i<4;i++) {
+							int o = (min(by*4+j, height-1)*width+min(bx*4+i, width-1))*bytesPerPixel; //repeats the edges of partial blocks
+							for (int c=0;c<4;c++)
+								block[k++] = channels[c]<0?255:pixels[o+channels[c]]&0xFF;
+						}
+
+					int o = (by*blocks.columns+bx)*format.bytesPerBlock;
+					switch (format) {
+					case BC1: encodeColor(block, out, o); break;
+					case BC3: encodeAlpha(block, out, o); encodeColor(block, out, o+8); break;
+					case BC7: encodeMode6(block, out, o); break;
+					}
+				}
+		}));
+
+		return blocks;
+	}
+
+	///////////////////
+
+	//finds the pixels with the smallest and biggest projection onto the block's principal axis, returns them as lo | hi<<8
+	static private int extremes(int[] block, int channels) {
+		double[] mean = new double[4];
+		for (int k=0;k<16;k++)
+			for (int c=0;c<channels;c++)
+				mean[c] += block[k*4+c]/16.0;
+
+		double[] cov = new double[16];
+		for (int k=0;k<16;k++)
+			for (int c=0;c<channels;c++)
+				for (int d=0;d<channels;d++)
+					cov[c*4+d] += (block[k*4+c]-mean[c])*(block[k*4+d]-mean[d]);
+
+		double[] axis = { 1, 1, 1, 1 }, next = new double[4];
+		for (int n=0;n<8;n++) { //power iteration
+			double length = 0;
+			for (int c=0;c<channels;c++) {
+				next[c] = 0;
+				for (int d=0;d<channels;d++)
+					next[c] += cov[c*4+d]*axis[d];
+
+				length = max(length, abs(next[c]));
+			}
+
+			if (length==0) //flat block
+				return 0;
+
+			for (int c=0;c<channels;c++)
+				axis[c] = next[c]/length;
+		}
+
+		int lo = 0, hi = 0;
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for (int k=0;k<16;k++) {
+			double t = 0;
+			for (int c=0;c<channels;c++)
+				t += block[k*4+c]*axis[c];
+
+			if (t<min) { min = t; lo = k; }
+			if (t>max) { max = t; hi = k; }
+		}
+
+		return lo | hi<<8;
+	}
+
+	static private int to565(int[] block, int k) {
+		int r = (block[k*4]*31+127)/255, g = (block[k*4+1]*63+127)/255, b = (block[k*4+2]*31+127)/255;
+		return r<<11 | g<<5 | b;
+	}
+
+	static private void from565(int c, int[] rgb, int o) {
+		int r = c>>11&31, g = c>>5&63, b = c&31;
+		rgb[o] = r<<3 | r>>2;
+		rgb[o+1] = g<<2 | g>>4;
+		rgb[o+2] = b<<3 | b>>2;
+	}
+
+	//BC1 color block in four color mode: two 565 endpoints, 2 bit indices
+	static private void encodeColor(int[] block, byte[] out, int o) {
+		int ends = extremes(block, 3);
+		int c0 = to565(block, ends>>8), c1 = to565(block, ends&0xFF);
+		if (c0<c1) {
+			int swap = c0; c0 = c1; c1 = swap;
+		}
+
+		int indices = 0;
+		if (c0!=c1) {
+			int[] palette = new int[12];
+			from565(c0, palette, 0);
+			from565(c1, palette, 3);
+			for (int c=0;c<3;c++) {
+				palette[6+c] = (2*palette[c]+palette[3+c])/3;
+				palette[9+c] = (palette[c]+2*palette[3+c])/3;
+			}
+
+			for (int k=0;k<16;k++)
+				indices |= nearest(block, k, palette, 3, 4)<<(2*k);
+		}
+
+		out[o] = (byte) c0; out[o+1] = (byte) (c0>>8);
+		out[o+2] = (byte) c1; out[o+3] = (byte) (c1>>8);
+		for (int i=0;i<4;i++)
+			out[o+4+i] = (byte) (indices>>(8*i));
+	}
+
+	//BC3 alpha block: two 8 bit endpoints, 3 bit indices into 8 steps
+	static private void encodeAlpha(int[] block, byte[] out, int o) {
+		int a0 = 0, a1 = 255;
+		for (int k=0;k<16;k++) {
+			a0 = max(a0, block[k*4+3]);
+			a1 = min(a1, block[k*4+3]);
+		}
+
+		long indices = 0;
+		if (a0!=a1) {
+			int[] palette = new int[8];
+			palette[0] = a0; palette[1] = a1;
+			for (int i=1;i<7;i++)
+				palette[i+1] = ((7-i)*a0+i*a1)/7;
+
+			for (int k=0;k<16;k++) {
+				int best = 0;
+				for (int i=1;i<8;i++)
+					if (abs(palette[i]-block[k*4+3])<abs(palette[best]-block[k*4+3]))
+						best = i;
+
+				indices |= (long)best<<(3*k);
+			}
+		}
+
+		out[o] = (byte) a0; out[o+1] = (byte) a1;
+		for (int i=0;i<6;i++)
+			out[o+2+i] = (byte) (indices>>(8*i));
+	}
+
+	//BC7 mode 6: one subset, RGBA endpoints of 7 bits plus a p-bit each, 4 bit indices
+	static private void encodeMode6(int[] block, byte[] out, int o) {
+		int ends = extremes(block, 4);
+		int[] q = new int[8], e = new int[8]; //quantized and reconstructed endpoints, rgba each
+		int p0 = quantize(block, ends>>8, q, e, 0), p1 = quantize(block, ends&0xFF, q, e, 4);
+
+		int[] palette = new int[64];
+		for (int i=0;i<16;i++)
+			for (int c=0;c<4;c++)
+				palette[i*4+c] = ((64-BC7_WEIGHTS[i])*e[c]+BC7_WEIGHTS[i]*e[4+c]+32)>>6;
+
+		int[] indices = new int[16];
+		for (int k=0;k<16;k++)
+			indices[k] = nearest(block, k, palette, 4, 16);
+
+		if (indices[0]>=8) { //the anchor index has an implicit leading 0, swap the endpoints
+			for (int c=0;c<4;c++) {
+				int swap = q[c]; q[c] = q[4+c]; q[4+c] = swap;
+			}
+			int swap = p0; p0 = p1; p1 = swap;
+			for (int k=0;k<16;k++)
+				indices[k] = 15-indices[k];
+		}
+
+		for (int i=0;i<16;i++)
+			out[o+i] = 0;
+
+		int bit = bits(out, o, 0, 1<<6, 7); //mode 6
+		for (int c=0;c<4;c++) {
+			bit = bits(out, o, bit, q[c], 7);
+			bit = bits(out, o, bit, q[4+c], 7);
+		}
+		bit = bits(out, o, bit, p0, 1);
+		bit = bits(out, o, bit, p1, 1);
+		for (int k=0;k<16;k++)
+			bit = bits(out, o, bit, indices[k], k==0?3:4);
+	}
+
+	//7 bit endpoint plus shared p-bit of pixel k, whichever p-bit fits better, returns the p-bit
+	static private int quantize(int[] block, int k, int[] q, int[] e, int o) {
+		int best = 0, bestError = Integer.MAX_VALUE;
+		for (int p=0;p<2;p++) {
+			int error = 0;
+			for (int c=0;c<4;c++) {
+				int v = block[k*4+c], quantized = min(127, max(0, (v-p+1)>>1));
+				error += abs((quantized<<1|p)-v);
+			}
+
+			if (error<bestError) {
+				bestError = error;
+				best = p;
+			}
+		}
+
+		for (int c=0;c<4;c++) {
+			q[o+c] = min(127, max(0, (block[k*4+c]-best+1)>>1));
+			e[o+c] = q[o+c]<<1|best;
+		}
+
+		return best;
+	}
+
+	static private int nearest(int[] block, int k, int[] palette, int channels, int entries) {
+		int best = 0, bestDistance = Integer.MAX_VALUE;
+		for (int i=0;i<entries;i++) {
+			int distance = 0;
+			for (int c=0;c<channels;c++) {
+				int d = block[k*4+c]-palette[i*channels+c];
+				distance += d*d;
+			}
+
+			if (distance<bestDistance) {
+				bestDistance = distance;
+				best = i;
+			}
+		}
+
+		return best;
+	}
+
+	//writes n bits of value least significant first, returns the next bit position
+	static private int bits(byte[] out, int o, int bit, int value, int n) {
+		for (int i=0;i<n;i++, bit++)
+			if ((value>>i&1)!=0)
+				out[o+(bit>>3)] |= 1<<(bit&7);
+
+		return bit;
+	}
+
+	///////////////////
+
+	/**
+	 * A compressed image, rows of 4x4 blocks
+	 */
+	static public class Blocks implements CompressedTextureSource {
+		final Format format;
+		final int width, height, columns, rows;
+		final byte[] data;
+
+		private Blocks(Format format, int width, int height) {
+			this.format = format;
+			this.width = width; this.height = height;
+			this.columns = (width+3)/4; this.rows = (height+3)/4;
+			this.data = new byte[columns*rows*format.bytesPerBlock];
+		}
+
+		@Override
+		public void grab(int x, int y, int width, int height, ByteBuffer to, int offset, int bytesPerLine) {
+			int bx = x/4, by = y/4, blocksPerLine = (x+width+3)/4-bx, lines = (y+height+3)/4-by;
+			for (int j=0;j<lines;j++) {
+				to.position(offset+j*bytesPerLine);
+				to.put(data, ((by+j)*columns+bx)*format.bytesPerBlock, blocksPerLine*format.bytesPerBlock);
+			}
+		}
+
+		@Override public int getBlockWidth() { return 4; }
+		@Override public int getBlockHeight() { return 4; }
+		@Override public int getBytesPerBlock() { return format.bytesPerBlock; }
+
+		@Override public int getWidth() { return width; }
+		@Override public int getHeight() { return height; }
+		@Override public int getFormat() { return format.internalformat; }
+	}
+}
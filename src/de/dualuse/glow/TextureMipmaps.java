@@ -0,0 +1,177 @@
+package de.dualuse.glow;
+
+import static java.lang.Math.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <h2>Mipmap chains computed on the CPU</h2>
+ *
+ * <pre>
+ * - each level is filtered down from the previous one, rows are spread over the tasks of a fork join pool
+ * - works in the source's format, channel by channel, for sources of one byte per channel
+ * - BOX averages 2x2 pixels, LANCZOS uses a separable 2-lobed Lanczos kernel of 8x8 taps, which keeps details sharper
+ * - level n is max(1, width>>n) x max(1, height>>n), down to 1 x 1, as GL expects it
+ * </pre>
+ */
+public class TextureMipmaps {
+	public enum Filter { BOX, LANCZOS }
+
+	//lanczos 2 weights for halving, taps at source offsets -3..4 around 2*x
+	final static private float[] LANCZOS_WEIGHTS = new float[8];
+	static {
+		float sum = 0;
+		for (int i=0;i<8;i++)
+			sum += LANCZOS_WEIGHTS[i] = (float) lanczos((i-3-.5)/2, 2);
+
+		for (int i=0;i<8;i++)
+			LANCZOS_WEIGHTS[i] /= sum;
+	}
+
+	static private double lanczos(double x, int a) {
+		if (x==0)
+			return 1;
+		if (abs(x)>=a)
+			return 0;
+
+		double px = PI*x;
+		return a*sin(px)*sin(px/a)/(px*px);
+	}
+
+	/**
+	 * @return whether the source's pixels can be filtered channel by channel
+	 */
+	static public boolean isSupported(TextureSource src) {
+		switch (src.getType()) {
+		case GL_UNSIGNED_BYTE:
+		case GL_UNSIGNED_INT_8_8_8_8:
+		case GL_UNSIGNED_INT_8_8_8_8_REV:
+			return src.getDepth()%8==0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Computes all levels of the mipmap chain on the common fork join pool
+	 * @return the levels, finest first, level 0 being src itself
+	 * @throws IllegalArgumentException if the source's type is not one byte per channel
+	 */
+	static public TextureSource[] generate(TextureSource src, Filter filter) {
+		return generate(src, filter, ForkJoinPool.commonPool());
+	}
+
+	static public TextureSource[] generate(TextureSource src, Filter filter, ForkJoinPool pool) {
+		if (!isSupported(src))
+			throw new IllegalArgumentException("type "+src.getType()+" is not one byte per channel, generate mipmaps on the GPU instead");
+
+		int width = src.getWidth(), height = src.getHeight(), channels = src.getDepth()/8;
+		int levels = 32-Integer.numberOfLeadingZeros(max(width, height));
+
+		TextureSource[] chain = new TextureSource[levels];
+		chain[0] = src;
+
+		Level previous = new Level(src, width, height, new byte[width*height*channels]);
+		src.grab(0, 0, width, height, ByteBuffer.wrap(previous.pixels), 0, width*channels);
+
+		for (int n=1;n<levels;n++) {
+			int w = max(1, width>>n), h = max(1, height>>n);
+			Level next = new Level(src, w, h, new byte[w*h*channels]);
+
+			if (filter==Filter.LANCZOS && previous.width>=4 && previous.height>=4)
+				lanczos(pool, previous, next, channels);
+			else
+				box(pool, previous, next, channels);
+
+			chain[n] = previous = next;
+		}
+
+		return chain;
+	}
+
+	///////////////////
+
+	static private void box(ForkJoinPool pool, Level from, Level to, int channels) {
+		int fw = from.width, fh = from.height, tw = to.width;
+		byte[] f = from.pixels, t = to.pixels;
+
+		pool.invoke(new ParallelRows(0, to.height, (y0, y1) -> {
+			for (int y=y0;y<y1;y++) {
+				int r0 = min(2*y, fh-1)*fw, r1 = min(2*y+1, fh-1)*fw;
+				for (int x=0, o=y*tw*channels;x<tw;x++) {
+					int c0 = min(2*x, fw-1), c1 = min(2*x+1, fw-1);
+					for (int c=0;c<channels;c++)
+						t[o++] = (byte) (((f[(r0+c0)*channels+c]&0xFF)+(f[(r0+c1)*channels+c]&0xFF)+(f[(r1+c0)*channels+c]&0xFF)+(f[(r1+c1)*channels+c]&0xFF)+2)>>2);
+				}
+			}
+		}));
+	}
+
+	static private void lanczos(ForkJoinPool pool, Level from, Level to, int channels) {
+		int fw = from.width, fh = from.height, tw = to.width;
+		byte[] f = from.pixels, t = to.pixels;
+		float[] horizontal = new float[tw*fh*channels]; //halved horizontally, full height
+
+		pool.invoke(new ParallelRows(0, fh, (y0, y1) -> {
+			for (int y=y0;y<y1;y++)
+				for (int x=0, o=y*tw*channels;x<tw;x++)
+					for (int c=0;c<channels;c++, o++) {
+						float sum = 0;
+						for (int k=0;k<8;k++)
+							sum += LANCZOS_WEIGHTS[k]*(f[(y*fw+clamp(2*x-3+k, fw))*channels+c]&0xFF);
+
+						horizontal[o] = sum;
+					}
+		}));
+
+		pool.invoke(new ParallelRows(0, to.height, (y0, y1) -> {
+			for (int y=y0;y<y1;y++)
+				for (int x=0, o=y*tw*channels;x<tw;x++)
+					for (int c=0;c<channels;c++, o++) {
+						float sum = 0;
+						for (int k=0;k<8;k++)
+							sum += LANCZOS_WEIGHTS[k]*horizontal[(clamp(2*y-3+k, fh)*tw+x)*channels+c];
+
+						t[o] = (byte) min(255, max(0, round(sum)));
+					}
+		}));
+	}
+
+	static private int clamp(int i, int size) {
+		return i<0?0:i>=size?size-1:i;
+	}
+
+	///////////////////
+
+	/**
+	 * A level of a mipmap chain, tightly packed in the format of the source it was computed from
+	 */
+	static public class Level implements TextureSource {
+		final int width, height, depth, format, type;
+		final byte[] pixels;
+
+		private Level(TextureSource src, int width, int height, byte[] pixels) {
+			this.width = width; this.height = height;
+			this.depth = src.getDepth(); this.format = src.getFormat(); this.type = src.getType();
+			this.pixels = pixels;
+		}
+
+		@Override
+		public void grab(int x, int y, int width, int height, ByteBuffer to, int offset, int bytesPerLine) {
+			int bytesPerPixel = depth/8, stride = this.width*bytesPerPixel;
+			for (int j=0;j<height;j++) {
+				to.position(offset+j*bytesPerLine);
+				to.put(pixels, (y+j)*stride+x*bytesPerPixel, width*bytesPerPixel);
+			}
+		}
+
+		@Override public int getWidth() { return width; }
+		@Override public int getHeight() { return height; }
+		@Override public int getDepth() { return depth; }
+		@Override public int getFormat() { return format; }
+		@Override public int getType() { return type; }
+	}
+}
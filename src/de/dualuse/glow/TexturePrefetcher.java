@@ -0,0 +1,285 @@
+package de.dualuse.glow;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h2>Background grabbing of TextureSources ahead of their upload</h2>
+ *
+ * <pre>
+ * - grabs (and thereby converts) source regions into staging buffers on a pool of worker threads
+ * - the GL thread then only copies staged rows or uploads them, instead of converting pixels during bind
+ * - in-flight memory is bounded, prefetch requests beyond the budget are declined and grabbed on the GL thread as before
+ * - prefetches not yet started when their upload comes up are grabbed straight from the source on the GL thread
+ * - prefetches superseded by a newer upload may be cancelled at any time, a cancelled upload in progress grabs from the source
+ * </pre>
+ */
+public class TexturePrefetcher {
+	final static public long DEFAULT_MAX_IN_FLIGHT_BYTES = 64*1024*1024;
+	final static private int ALIGNMENT = 4; // GL's default GL_UNPACK_ALIGNMENT, staged lines are padded to it
+
+	final static private AtomicInteger threadCounter = new AtomicInteger();
+
+	public final long maxInFlightBytes;
+
+	private final ExecutorService workers;
+	private final StagingBufferPool pool;
+	private final AtomicLong inFlight = new AtomicLong();
+	private final Queue<ByteBuffer> returned = new ConcurrentLinkedQueue<>();
+
+	public TexturePrefetcher() {
+		this(Math.max(1, Runtime.getRuntime().availableProcessors()/2), DEFAULT_MAX_IN_FLIGHT_BYTES);
+	}
+
+	public TexturePrefetcher(int threads, long maxInFlightBytes) {
+		this(threads, maxInFlightBytes, new StagingBufferPool());
+	}
+
+	public TexturePrefetcher(int threads, long maxInFlightBytes, StagingBufferPool pool) {
+		this.maxInFlightBytes = maxInFlightBytes;
+		this.pool = pool;
+
+		ThreadFactory daemons = r -> {
+			Thread t = new Thread(r, "glow-prefetch-"+threadCounter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		this.workers = Executors.newFixedThreadPool(threads, daemons);
+	}
+
+	/**
+	 * Schedules the given region of src to be grabbed by a worker
+	 * @return a TextureSource standing in for the region, or null if the in-flight budget is exhausted
+	 */
+	public Prefetch prefetch(TextureSource src, int x, int y, int width, int height) {
+		int bytesPerLine = (src.getDepth()/8*width+ALIGNMENT-1)/ALIGNMENT*ALIGNMENT;
+		int size = bytesPerLine*height;
+
+		if (!reserve(size))
+			return null;
+
+		Prefetch p = new Prefetch(src, x, y, width, height, bytesPerLine);
+		workers.execute(p);
+		return p;
+	}
+
+	/**
+	 * @return bytes currently reserved by prefetches that are queued, staged or being uploaded
+	 */
+	public long getInFlightBytes() {
+		return inFlight.get();
+	}
+
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	//////////////////
+
+	private boolean reserve(int size) {
+		for (long current = inFlight.get(); current+size<=maxInFlightBytes; current = inFlight.get())
+			if (inFlight.compareAndSet(current, current+size))
+				return true;
+
+		return false;
+	}
+
+	private ByteBuffer acquire(int size) { //called by workers only, such that the buffers cycle within their stripes
+		for (ByteBuffer b = returned.poll(); b!=null; b = returned.poll())
+			pool.release(b);
+
+		return pool.acquire(size);
+	}
+
+	private void release(ByteBuffer b, int size) {
+		if (b!=null)
+			returned.add(b);
+
+		inFlight.addAndGet(-size);
+	}
+
+	//////////////////
+
+	/**
+	 * A region of a TextureSource that is being, or has been grabbed by a worker.
+	 * Grabs from it copy the staged lines, falling back to the original source if nothing was staged.
+	 */
+	public class Prefetch implements TextureSource, Runnable {
+		final static private int PENDING = 0, RUNNING = 1, STAGED = 2, CONSUMING = 3, RELEASED = 4;
+
+		public final TextureSource source;
+		final int x, y, width, height, bytesPerLine, size;
+
+		private int state = PENDING;
+		private boolean superseded = false;
+		private ByteBuffer staged = null;
+		private long consumedPixels = 0;
+		private int readers = 0; //grabs copying from the staged lines right now
+
+		private Prefetch(TextureSource source, int x, int y, int width, int height, int bytesPerLine) {
+			this.source = source;
+			this.x = x; this.y = y;
+			this.width = width; this.height = height;
+			this.bytesPerLine = bytesPerLine;
+			this.size = bytesPerLine*height;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (state!=PENDING) //cancelled or taken over by the GL thread
+					return;
+
+				state = RUNNING;
+			}
+
+			ByteBuffer b = null;
+			try {
+				b = acquire(size);
+				source.grab(x, y, width, height, b, 0, bytesPerLine);
+			} catch (RuntimeException ex) { //leave it to the GL thread to run into it again
+				if (b!=null)
+					pool.release(b);
+				b = null;
+			}
+
+			synchronized (this) {
+				staged = b;
+				state = STAGED;
+
+				if (superseded || b==null)
+					dispose();
+
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Cancels the prefetch, releasing its staged lines. Grabs from it go to the original source from then on
+		 * @return true if cancelled, false if already consumed
+		 */
+		public synchronized boolean cancel() {
+			switch (state) {
+			case PENDING:
+				superseded = true;
+				state = RELEASED;
+				release(null, size);
+				return true;
+
+			case RUNNING:
+				superseded = true; //the worker disposes it when done
+				return true;
+
+			case STAGED:
+				superseded = true;
+				dispose();
+				return true;
+
+			case CONSUMING: //the upload is dropped, or will be, it won't consume the rest
+				superseded = true;
+				if (readers==0) //otherwise the last grab copying from it disposes it
+					dispose();
+				return true;
+
+			default:
+				return false;
+			}
+		}
+
+		public synchronized boolean isCancelled() {
+			return superseded;
+		}
+
+		public synchronized boolean isDone() {
+			return state==RELEASED;
+		}
+
+		private void dispose() {
+			if (state==RELEASED)
+				return;
+
+			release(staged, size);
+			staged = null;
+			state = RELEASED;
+		}
+
+		private synchronized ByteBuffer claim() {
+			boolean interrupted = false;
+			while (state==RUNNING)
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+
+			switch (state) {
+			case PENDING: //not started yet, no point in waiting for a worker, grab it straight from the source
+				state = RELEASED;
+				release(null, size);
+				return null;
+
+			case STAGED:
+				state = CONSUMING;
+			case CONSUMING:
+				if (superseded)
+					return null;
+
+				readers++;
+				return staged;
+
+			default:
+				return null;
+			}
+		}
+
+		private synchronized void consumed(int pixels) {
+			readers--;
+			consumedPixels += pixels;
+			if (readers==0 && (superseded || consumedPixels>=(long)width*height))
+				dispose();
+		}
+
+		@Override
+		public void grab(int x, int y, int width, int height, ByteBuffer to, int offset, int bytesPerLine) {
+			ByteBuffer staged = claim();
+			if (staged==null) {
+				source.grab(this.x+x, this.y+y, width, height, to, offset, bytesPerLine);
+				return;
+			}
+
+			int copied = 0;
+			try {
+				ByteBuffer from = staged.duplicate();
+				int bytesPerPixel = getDepth()/8, lineLength = width*bytesPerPixel;
+
+				if (x==0 && width==this.width && bytesPerLine==this.bytesPerLine) { //same layout, copy in one blow
+					from.limit((y+height)*bytesPerLine).position(y*bytesPerLine);
+					((ByteBuffer)to.position(offset)).put(from);
+				} else
+					for (int j=0, o=(y*this.bytesPerLine)+x*bytesPerPixel;j<height;j++,o+=this.bytesPerLine) {
+						from.limit(o+lineLength).position(o);
+						((ByteBuffer)to.position(offset+j*bytesPerLine)).put(from);
+					}
+
+				copied = width*height;
+			} finally {
+				consumed(copied);
+			}
+		}
+
+		@Override public int getWidth() { return width; }
+		@Override public int getHeight() { return height; }
+		@Override public int getDepth() { return source.getDepth(); }
+		@Override public int getFormat() { return source.getFormat(); }
+		@Override public int getType() { return source.getType(); }
+	}
+}
@@ -3,7 +3,7 @@ package de.dualuse.glow;
 import java.nio.ByteBuffer;
 
 public interface TextureSource {
-	///XXX probably also support that grab returns a new bytebuffer, such that the buffer where the data is written to is optional
+	///sources that hold their pixels in direct memory already implement DirectTextureSource, such that they are uploaded without being grabbed
 	public void grab(int x, int y, int width, int height, ByteBuffer to, int offset, int bytesPerLine); // <- for the glTextureCall
 	
 //	public TextureSource subsection(int x, int y, int width, int height);
@@ -16,6 +16,17 @@ public interface TextureSource {
 	public int getFormat();
 	public int getType();
 	
+	/**
+	 * @return the internal format textures are defined with, unless one is given, e.g. GL_RGB for sources whose 4th channel is unused
+	 */
+	default public int getInternalFormat() { return GLTexture.internalFormatForFormat(getFormat()); }
+	
+	/**
+	 * @return the rectangles changed since they were last uploaded by {@link GLTexture#sendDirtyRegions(int, int, int, TextureSource)}, 
+	 * or null if the source does not keep track of its changes 
+	 */
+	default public DirtyRegion getDirtyRegion() { return null; }
+	
 //	default public void grabRGB(int x, int y, int width, int height, int[] argb, int offset, int scan) { grab(x,y,width,height,argb,offset,scan); /* remove alpha here*/ };
 //	public void grabLuminance(int x, int y, int width, int height, byte[] lum, int offset, int scan);
 //	public void grabLuminance(int x, int y, int width, int height, short[] Y, int offset, int scan);
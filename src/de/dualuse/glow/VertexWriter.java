@@ -24,6 +24,7 @@ interface VertexWriter {
 	public VertexWriter vec4d(double x, double y, double z, double w);
 	
 	public VertexWriter attribute(GLAttribute a);
+	public IndexWriter indices();
 	
 	public void send();
 	public void end();
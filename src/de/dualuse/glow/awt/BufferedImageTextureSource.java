@@ -1,95 +1,171 @@
-//package de.dualuse.glow.awt;
-//
-//import static org.lwjgl.opengl.GL11.*;
-//import static org.lwjgl.opengl.GL12.*;
-//
-//import java.awt.image.BufferedImage;
-//import java.awt.image.DataBufferInt;
-//import java.nio.ByteBuffer;
-//import java.nio.IntBuffer;
-//import java.util.Map;
-//
-//import de.dualuse.glow.TextureSource;
-//
-//
-//class BufferedImageTextureSource implements TextureSource {
-//	
-//	public final BufferedImage source;
-//	
-//	public BufferedImageTextureSource(BufferedImage bi) {
-//		this.source = bi;
-//		
-//		if (!checkFormatAndType())
-//			throw new UnsupportedOperationException("BufferedImageTextureSource does not support type: "+source.getType());
-//	}
-//	
-//	
-//	private boolean checkFormatAndType() {
-//		switch (source.getType()) {
-//		case BufferedImage.TYPE_INT_ARGB:
-//		case BufferedImage.TYPE_INT_RGB:
-//		case BufferedImage.TYPE_BYTE_GRAY:
-//		case BufferedImage.TYPE_3BYTE_BGR:
-//		case BufferedImage.TYPE_USHORT_GRAY:
-//		case BufferedImage.TYPE_USHORT_555_RGB:
-//		case BufferedImage.TYPE_USHORT_565_RGB:
-//			return true;
-//		}
-//		
-//		return false;
-//	}
-//	
-//
-//	@Override public int getWidth() { return source.getWidth(); }
-//	@Override public int getHeight() { return source.getHeight(); }
-//	@Override public int getDepth() { 
-//		switch (source.getType()) {
-//		case BufferedImage.TYPE_INT_ARGB:
-//			return 32;
-//		case BufferedImage.TYPE_INT_RGB:
-//		case BufferedImage.TYPE_3BYTE_BGR:
-//			return 24;
-//			
-//		case BufferedImage.TYPE_BYTE_GRAY:
-//			return 8;
-//
-//		case BufferedImage.TYPE_USHORT_GRAY:
-//		case BufferedImage.TYPE_USHORT_555_RGB:
-//		case BufferedImage.TYPE_USHORT_565_RGB:
-//			return 16;
-//		}
-//		throw new IllegalArgumentException();
-//	}
-//
-//
-//	static final private Object[][] formats = { 
-//		{ BufferedImage.TYPE_INT_RGB, new Integer[] { GL_BGRA, GL_UNSIGNED_BYTE } },
-//		{ BufferedImage.TYPE_BYTE_GRAY, new Integer[] { GL_LUMINANCE, GL_UNSIGNED_BYTE }  }
-//	};
-//
-//	static final public Map<Integer,Integer[]> formatMap = new ArrayMap<>(formats);
-//	@Override public int getFormat() { return formatMap.get(source.getType())[0]; }
-//	
-//
-//	@Override public int getType() { return formatMap.get(source.getType())[1]; }
-//
-//
-//	//////////////
-//	
-//	@Override
-//	public void grab(int x, int y, int width, int height, ByteBuffer to, int offset, int scan) {
-//		switch (source.getType()) {
-//		
-//		case BufferedImage.TYPE_INT_RGB: 
-//			int[] pixels = ((DataBufferInt)source.getData().getDataBuffer()).getData();
-//			if (x==0 && y==0 && width == getWidth() && height == getHeight() && scan == source.getWidth())
-//				((IntBuffer)to.asIntBuffer().position(offset)).put(pixels);
-//			else 
-//				; //line by line
-//			break;
-//			
-//		
-//		}
-//	}
-//	
-//}
\ No newline at end of file
+package de.dualuse.glow.awt;
+
+import static java.awt.image.BufferedImage.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+
+import de.dualuse.glow.DirtyRegion;
+import de.dualuse.glow.ParallelRows;
+import de.dualuse.glow.TextureSource;
+
+/**
+ * <h2>TextureSource of a BufferedImage</h2>
+ *
+ * <pre>
+ * - copies straight out of the array backing the raster, never through getData(), which copies the whole raster
+ * - format and type describe the pixels as they are in memory, GL swizzles them, e.g. GL_BGRA + GL_UNSIGNED_INT_8_8_8_8_REV for TYPE_INT_ARGB
+ * - honors the raster's offset and scanline stride, so subimages work too
+ * - lines of large regions are copied in parallel on the common fork join pool
+ * - TYPE_INT_ARGB(_PRE), TYPE_INT_RGB, TYPE_INT_BGR, TYPE_4BYTE_ABGR(_PRE), TYPE_3BYTE_BGR,
+ *   TYPE_BYTE_GRAY, TYPE_USHORT_GRAY, TYPE_USHORT_565_RGB, TYPE_USHORT_555_RGB
+ * </pre>
+ *
+ * Taking the array out of the raster makes Java2D stop accelerating the image, as it can't know about changes anymore.
+ */
+public class BufferedImageTextureSource implements TextureSource {
+	final static private int PARALLEL_PIXELS = 1<<16; //smaller regions are copied by the calling thread
+	final static private boolean LITTLE_ENDIAN = ByteOrder.nativeOrder()==ByteOrder.LITTLE_ENDIAN;
+
+	final public BufferedImage source;
+
+	/**
+	 * rectangles of source changed since their last upload, to be marked by whoever draws into source
+	 */
+	final public DirtyRegion dirty = new DirtyRegion();
+
+	final private int format, type, internalformat, depth;
+	final private int[] ints;
+	final private byte[] bytes;
+	final private short[] shorts;
+	final private int base, scanlineStride, pixelStride; //in array elements
+
+	/**
+	 * Wraps a TextureSource around a BufferedImage. Assumes the image to be constant, unless changes are marked in {@link #dirty}
+	 * @throws UnsupportedOperationException if the image's type is not supported
+	 */
+	public BufferedImageTextureSource(BufferedImage source) {
+		this.source = source;
+
+		switch (source.getType()) {
+		case TYPE_INT_ARGB:
+		case TYPE_INT_ARGB_PRE: //0xAARRGGBB
+			format = GL_BGRA; type = GL_UNSIGNED_INT_8_8_8_8_REV; internalformat = GL_RGBA; depth = 32;
+			break;
+
+		case TYPE_INT_RGB: //0x00RRGGBB, the unused byte is read as alpha and dropped by the internal format
+			format = GL_BGRA; type = GL_UNSIGNED_INT_8_8_8_8_REV; internalformat = GL_RGB; depth = 32;
+			break;
+
+		case TYPE_INT_BGR: //0x00BBGGRR
+			format = GL_RGBA; type = GL_UNSIGNED_INT_8_8_8_8_REV; internalformat = GL_RGB; depth = 32;
+			break;
+
+		case TYPE_4BYTE_ABGR:
+		case TYPE_4BYTE_ABGR_PRE: //bytes A,B,G,R, read as int that's R first from the most significant byte on little endian machines
+			format = GL_RGBA; type = LITTLE_ENDIAN?GL_UNSIGNED_INT_8_8_8_8:GL_UNSIGNED_INT_8_8_8_8_REV; internalformat = GL_RGBA; depth = 32;
+			break;
+
+		case TYPE_3BYTE_BGR:
+			format = GL_BGR; type = GL_UNSIGNED_BYTE; internalformat = GL_RGB; depth = 24;
+			break;
+
+		case TYPE_BYTE_GRAY:
+			format = GL_LUMINANCE; type = GL_UNSIGNED_BYTE; internalformat = GL_LUMINANCE; depth = 8;
+			break;
+
+		case TYPE_USHORT_GRAY:
+			format = GL_LUMINANCE; type = GL_UNSIGNED_SHORT; internalformat = GL_LUMINANCE16; depth = 16;
+			break;
+
+		case TYPE_USHORT_565_RGB:
+			format = GL_RGB; type = GL_UNSIGNED_SHORT_5_6_5; internalformat = GL_RGB; depth = 16;
+			break;
+
+		case TYPE_USHORT_555_RGB: //x1R5G5B5, the unused bit is read as alpha and dropped by the internal format
+			format = GL_BGRA; type = GL_UNSIGNED_SHORT_1_5_5_5_REV; internalformat = GL_RGB; depth = 16;
+			break;
+
+		default:
+			throw new UnsupportedOperationException("BufferedImageTextureSource does not support type: "+source.getType());
+		}
+
+		WritableRaster raster = source.getRaster();
+		DataBuffer buffer = raster.getDataBuffer();
+		SampleModel model = raster.getSampleModel();
+
+		//DataBuffer's getData() hands out the backing array itself
+		ints = buffer instanceof DataBufferInt?((DataBufferInt)buffer).getData():null;
+		bytes = buffer instanceof DataBufferByte?((DataBufferByte)buffer).getData():null;
+		shorts = buffer instanceof DataBufferUShort?((DataBufferUShort)buffer).getData():null;
+
+		int firstBand = 0;
+		if (model instanceof ComponentSampleModel) {
+			ComponentSampleModel c = (ComponentSampleModel)model;
+			scanlineStride = c.getScanlineStride();
+			pixelStride = c.getPixelStride();
+
+			firstBand = Integer.MAX_VALUE;
+			for (int bandOffset: c.getBandOffsets())
+				firstBand = Math.min(firstBand, bandOffset);
+		} else
+		if (model instanceof SinglePixelPackedSampleModel) {
+			scanlineStride = ((SinglePixelPackedSampleModel)model).getScanlineStride();
+			pixelStride = 1;
+		} else
+			throw new UnsupportedOperationException("BufferedImageTextureSource does not support "+model.getClass().getSimpleName());
+
+		//subimages share the parent's array, translated
+		base = buffer.getOffset()+firstBand-raster.getSampleModelTranslateY()*scanlineStride-raster.getSampleModelTranslateX()*pixelStride;
+	}
+
+
+	@Override
+	public void grab(int x, int y, int width, int height, ByteBuffer to, int offset, int bytesPerLine) {
+		ParallelRows.Band lines = (from, until) -> copy(x, y+from, width, until-from, to, offset+from*bytesPerLine, bytesPerLine);
+
+		if (width*height<PARALLEL_PIXELS)
+			lines.rows(0, height);
+		else
+			ForkJoinPool.commonPool().invoke(new ParallelRows(0, height, lines));
+	}
+
+	private void copy(int x, int y, int width, int height, ByteBuffer to, int offset, int bytesPerLine) {
+		ByteBuffer line = to.duplicate().order(ByteOrder.nativeOrder()); //own position for each band, native order for ints and shorts
+
+		for (int j=0, i=base+y*scanlineStride+x*pixelStride;j<height;j++,i+=scanlineStride) {
+			line.position(offset+j*bytesPerLine);
+
+			if (ints!=null)
+				line.asIntBuffer().put(ints, i, width);
+			else
+			if (shorts!=null)
+				line.asShortBuffer().put(shorts, i, width);
+			else
+				line.put(bytes, i, width*pixelStride);
+		}
+	}
+
+
+	@Override public int getWidth() { return source.getWidth(); }
+	@Override public int getHeight() { return source.getHeight(); }
+	@Override public int getDepth() { return depth; }
+
+	@Override public int getFormat() { return format; }
+	@Override public int getType() { return type; }
+	@Override public int getInternalFormat() { return internalformat; }
+
+	@Override public DirtyRegion getDirtyRegion() { return dirty; }
+}
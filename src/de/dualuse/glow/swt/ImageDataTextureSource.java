@@ -4,26 +4,82 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.*;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.graphics.PaletteData;
 import org.eclipse.swt.graphics.RGB;
 
+import de.dualuse.glow.DirtyRegion;
+import de.dualuse.glow.ParallelRows;
 import de.dualuse.glow.TextureSource;
 
+/**
+ * <h2>TextureSource of SWT ImageData</h2>
+ *
+ * <pre>
+ * - 24 bit BGR/RGB and grayscale palettes are copied line by line as they are
+ * - alphaData is interleaved a whole word per pixel into GL_BGRA/GL_RGBA ints, typed GL_UNSIGNED_INT_8_8_8_8_REV
+ * - other palettes of up to 8 bits are resolved through a table of the palette's colors as GL_BGRA ints, 
+ *   the transparent pixel, if any, being transparent 
+ * - lines of large regions are converted in parallel on the common fork join pool
+ * </pre>
+ */
 public class ImageDataTextureSource implements TextureSource {
+	final static private int PARALLEL_PIXELS = 1<<16; //smaller regions are converted by the calling thread
+	
 	final public ImageData source;
 	
 	/**
-	 * Wraps a TextureSource around ImageData. Assumes ImageData source to be constant 
+	 * rectangles of source changed since their last upload, to be marked by whoever draws into source
+	 */
+	final public DirtyRegion dirty = new DirtyRegion();
+	
+	final private int format, type, depth;
+	final private int[] colors; //0xAARRGGBB of each palette index, null unless the source is converted through its palette
+	
+	/**
+	 * Wraps a TextureSource around ImageData. Assumes ImageData source to be constant, unless changes are marked in {@link #dirty}  
 	 * @param source
+	 * @throws IllegalArgumentException if ImageData is not supported
 	 */
 	public ImageDataTextureSource(ImageData source) {
 		this.source = source;
 		
-		getFormat(); //throws exception if ImageData is not supported
+		PaletteData pal = source.palette;
+		boolean alpha = source.alphaData!=null;
+		
+		if (pal.isDirect && source.depth==24 && source.maskData==null && source.transparentPixel==-1 && 
+			pal.greenMask==0xFF00 && pal.greenShift==-8 && 
+			(isMask(pal.blueMask, pal.blueShift, 0xFF0000, -16) && isMask(pal.redMask, pal.redShift, 0xFF, 0) || 
+			 isMask(pal.blueMask, pal.blueShift, 0xFF, 0) && isMask(pal.redMask, pal.redShift, 0xFF0000, -16))) {
+			boolean bgr = pal.blueMask==0xFF0000; //blue is the first byte of a pixel
+			format = bgr?(alpha?GL_BGRA:GL_BGR):(alpha?GL_RGBA:GL_RGB);
+			type = alpha?GL_UNSIGNED_INT_8_8_8_8_REV:GL_UNSIGNED_BYTE;
+			depth = alpha?32:24;
+			colors = null;
+		} else
+		if (!pal.isDirect && pal.colors!=null && source.depth<=8 && source.maskData==null) {
+			if (!alpha && source.transparentPixel==-1 && source.depth==8 && pal.colors.length==256 && isGrayScalePalette(pal.colors)) {
+				format = GL_LUMINANCE; type = GL_UNSIGNED_BYTE; depth = 8;
+				colors = null;
+			} else {
+				format = GL_BGRA; type = GL_UNSIGNED_INT_8_8_8_8_REV; depth = 32;
+				colors = new int[256];
+				for (int i=0;i<pal.colors.length && i<256;i++) {
+					RGB c = pal.colors[i];
+					colors[i] = (i==source.transparentPixel?0:0xFF000000)|c.red<<16|c.green<<8|c.blue;
+				}
+			}
+		} else
+			throw new IllegalArgumentException();
+	}
+	
+	static private boolean isMask(int mask, int shift, int expectedMask, int expectedShift) {
+		return mask==expectedMask && shift==expectedShift;
 	}
 	
 	static boolean isGrayScalePalette(RGB[] colors) {
@@ -38,73 +94,65 @@ public class ImageDataTextureSource implements TextureSource {
 	@Override
 	public void grab(int offsetX, int offsetY, int width, int height, ByteBuffer to, int offset, int bytesPerScanLine) {
 		/// XXX Range Check here!
-		switch (getFormat()) {
-		case GL_LUMINANCE: 
-		case GL_BGR:
-		case GL_RGB:
-			to.position(offset);
-
-			for (int y=offsetY,Y=y+height, s= source.bytesPerLine, o=offsetY*s+offsetX,S=bytesPerScanLine,O=offset;y<Y;y++,o+=s)
-				to.put(source.data, o, source.bytesPerLine).position(O+=S); //use source.bytesPerLine instead of width*3, as there might be padding
-			break;
+		ParallelRows.Band lines = (from, until) -> convert(offsetX, offsetY+from, width, until-from, to, offset+from*bytesPerScanLine, bytesPerScanLine);
 		
-		case GL_RGBA: 
-		case GL_BGRA: 
-			to.position(offset); //advance to starting offset
-			for (int	y=offsetY, //from offsetY
-					Y=y+height,//to offsetY+height lines
-					p=offsetY*width+offsetX, //starting offset for the first pixel's alpha value (note that it does not use bytesPerLine, but width as scanline length  
-					s=source.bytesPerLine, //number of bytes to skip in source offset index 'o' for jumping to the next line
-					o=offsetY*s+offsetX, //starting offset for the first color in the first pixel 
-					S=bytesPerScanLine, //number of bytes to skip in the destination offset index 'O' for jumping to the next line
-					O=offset; //destination offset index variable
-					y<Y; //loop condition
-					y++, //advance loop counter
-					p+=width, //advance starting offset for alpha values by one line
-					o+=s, //advance starting offset for colors by one line
-					to.position(O+=S) //advance starting offset for destination writing by one line 
-				)
-				for (int x=offsetX,X=x+width,o_=o,p_=p;x<X;x++) { //iterate over one line, copy source offset index variables for color and alpha 
-					to.put(source.data[o_++]); //put red and advance source offset index
-					to.put(source.data[o_++]); //put green and advance source offset index
-					to.put(source.data[o_++]); //put blue and advance source offset index
-					to.put(source.alphaData[p_++]); //put alpha and advance alpha offset index
-				}
+		if (width*height<PARALLEL_PIXELS)
+			lines.rows(0, height);
+		else
+			ForkJoinPool.commonPool().invoke(new ParallelRows(0, height, lines));
+	}
+	
+	private void convert(int offsetX, int offsetY, int width, int height, ByteBuffer to, int offset, int bytesPerScanLine) {
+		ByteBuffer line = to.duplicate().order(ByteOrder.nativeOrder()); //own position for each band, native order for the ints
+		byte[] data = source.data, alphaData = source.alphaData;
+		int s = source.bytesPerLine; //might be padded
+		
+		if (colors!=null) { //palette indices through the color table
+			byte[] indices = new byte[width];
+			int[] pixels = new int[width];
+			
+			for (int y=offsetY,Y=y+height,p=offsetY*source.width+offsetX,O=offset;y<Y;y++,p+=source.width,O+=bytesPerScanLine) {
+				source.getPixels(offsetX, y, width, indices, 0); //unpacks 1, 2 and 4 bit indices too
+				
+				if (alphaData==null)
+					for (int x=0;x<width;x++)
+						pixels[x] = colors[indices[x]&0xFF];
+				else
+					for (int x=0;x<width;x++)
+						pixels[x] = colors[indices[x]&0xFF]&0xFFFFFF|alphaData[p+x]<<24;
+				
+				line.position(O);
+				line.asIntBuffer().put(pixels);
+			}
+		} else
+		if (alphaData!=null) { //3 bytes of color and the one of alpha into one int, bytes in the order of the format on any machine
+			int[] pixels = new int[width];
 			
+			for (int y=offsetY,Y=y+height,o=offsetY*s+offsetX*3,p=offsetY*source.width+offsetX,O=offset;y<Y;y++,o+=s,p+=source.width,O+=bytesPerScanLine) {
+				for (int x=0,o_=o;x<width;x++,o_+=3)
+					pixels[x] = alphaData[p+x]<<24|(data[o_+2]&0xFF)<<16|(data[o_+1]&0xFF)<<8|data[o_]&0xFF;
+				
+				line.position(O);
+				line.asIntBuffer().put(pixels);
+			}
+		} else { //GL_LUMINANCE, GL_BGR, GL_RGB are laid out like GL reads them, line by line
+			int bytesPerPixel = depth/8;
+			for (int y=offsetY,Y=y+height,o=offsetY*s+offsetX*bytesPerPixel,O=offset;y<Y;y++,o+=s,O+=bytesPerScanLine) {
+				line.position(O);
+				line.put(data, o, width*bytesPerPixel); //not source.bytesPerLine, as there might be padding and the region might be narrower
+			}
 		}
 	}
 
 	@Override public int getWidth() { return source.width; }
 	@Override public int getHeight() { return source.height; }
-	@Override public int getDepth() { return source.depth+(source.depth==24&&source.alphaData!=null?8:0); }
+	@Override public int getDepth() { return depth; }
 	
+	@Override public int getFormat() { return format; }
+	@Override public int getType() { return type; }
+	@Override public int getInternalFormat() { return colors!=null && source.alphaData==null && source.transparentPixel==-1?GL_RGB:TextureSource.super.getInternalFormat(); }
 	
-	@Override public int getFormat() { 
-		PaletteData pal = source.palette;
-		if (pal.blueMask==0xFF0000 && pal.blueShift==-16 &&
-			pal.greenMask==0xFF00 && pal.greenShift==-8 &&
-			pal.redMask==0xFF && pal.redShift==0 &&
-			source.depth==24 && pal.isDirect && 
-			source.maskData == null && source.transparentPixel == -1)
-				return source.alphaData==null? GL_BGR:GL_BGRA;
-		else 
-		if (pal.blueMask==0xFF && pal.blueShift==0 &&
-			pal.greenMask==0xFF00 && pal.greenShift==-8 &&
-			pal.redMask==0xFF0000 && pal.redShift==-16 &&
-			source.depth==24 && pal.isDirect && 
-			source.maskData == null && source.transparentPixel == -1)
-				return source.alphaData==null? GL_RGB:GL_RGBA;
-		else 
-		if (!pal.isDirect && 
-			 pal.colors!=null && 
-			 pal.colors.length==256 && 
-			 isGrayScalePalette(pal.colors)) 
-				return GL_LUMINANCE;
-		else
-			throw new IllegalArgumentException();
-	}
-	
-	@Override public int getType() { return GL_UNSIGNED_BYTE; }
+	@Override public DirtyRegion getDirtyRegion() { return dirty; }
 
 	
 	
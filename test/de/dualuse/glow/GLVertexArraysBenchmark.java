@@ -0,0 +1,79 @@
+package de.dualuse.glow;
+
+import static org.lwjgl.opengl.GL11.*;
+
+import java.util.Arrays;
+
+/**
+ * Measures writing a mesh through the VertexWriter calls and sending it to a GLVertexBufferObject,
+ * with planar and with interleaved arrays, position, normal, color and texcoord for each vertex.
+ * Sending only stages the arrays, so this runs without a GL context.
+ * <pre>
+ * java de.dualuse.glow.GLVertexArraysBenchmark [vertices]
+ * </pre>
+ */
+public class GLVertexArraysBenchmark {
+	final static private int WARMUP = 5, RUNS = 15;
+
+	public static void main(String[] args) {
+		int vertices = args.length>0?Integer.parseInt(args[0]):1000000;
+
+		GLAttribute position = new GLAttribute("position").set(0, 1, GLValueType.FLOAT_VEC3);
+		GLAttribute normal = new GLAttribute("normal").set(1, 1, GLValueType.FLOAT_VEC3);
+		GLAttribute color = new GLAttribute("color").set(2, 1, GLValueType.FLOAT_VEC4);
+		GLAttribute texcoord = new GLAttribute("texcoord").set(3, 1, GLValueType.FLOAT_VEC2);
+
+		StagingBufferPool pool = new StagingBufferPool(256*1024*1024, 256*1024*1024, StagingBufferPool.DEFAULT_MAX_IDLE_MILLIS);
+		System.out.println(vertices+" vertices, ns per vertex");
+
+		for (boolean interleave: new boolean[] { false, true }) {
+			GLVertexArrays va = new GLVertexArrays().capacity(vertices).interleave(interleave);
+			GLVertexBufferObject vbo = new GLVertexBufferObject(GLVertexBufferObject.Usage.STREAM).setStagingBuffers(pool);
+
+			double write = measure(() -> write(va, vertices, position, normal, color, texcoord));
+			double send = measure(() -> va.send(vbo));
+
+			System.out.printf("%-12s write %6.2f, send %6.2f, %d bytes%n", interleave?"interleaved":"planar", write/vertices, send/vertices, vbo.getSize());
+			vbo.deleteBuffer();
+		}
+	}
+
+	static private void write(GLVertexArrays va, int vertices, GLAttribute position, GLAttribute normal, GLAttribute color, GLAttribute texcoord) {
+		va.begin(GL_TRIANGLES);
+
+		//a grid of vertices, one attribute after the other
+		int width = (int) Math.sqrt(vertices);
+		va.attribute(position);
+		for (int i=0;i<vertices;i++)
+			va.vec3f(i%width, i/width, 0);
+
+		va.attribute(normal);
+		for (int i=0;i<vertices;i++)
+			va.vec3f(0, 0, 1);
+
+		va.attribute(color);
+		va.normalize(true);
+		for (int i=0;i<vertices;i++)
+			va.vec4b((byte)i, (byte)(i>>8), (byte)(i>>16), (byte)-1);
+
+		va.attribute(texcoord);
+		for (int i=0;i<vertices;i++)
+			va.vec2f(i%width*1f/width, i/width*1f/width);
+	}
+
+	//median of the runs in nanoseconds
+	static private double measure(Runnable run) {
+		long[] times = new long[RUNS];
+		for (int i=0;i<WARMUP;i++)
+			run.run();
+
+		for (int i=0;i<RUNS;i++) {
+			long start = System.nanoTime();
+			run.run();
+			times[i] = System.nanoTime()-start;
+		}
+
+		Arrays.sort(times);
+		return times[RUNS/2];
+	}
+}
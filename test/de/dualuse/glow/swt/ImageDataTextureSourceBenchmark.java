@@ -0,0 +1,101 @@
+package de.dualuse.glow.swt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+
+/**
+ * Measures {@link ImageDataTextureSource#grab(int, int, int, int, ByteBuffer, int, int)} against converting 
+ * pixel by pixel through ImageData's generic accessors, for each pixel format the source supports.
+ * <pre>
+ * java de.dualuse.glow.swt.ImageDataTextureSourceBenchmark [width height]
+ * </pre>
+ */
+public class ImageDataTextureSourceBenchmark {
+	final static private int WARMUP = 5, RUNS = 15;
+	
+	public static void main(String[] args) {
+		int width = args.length>1?Integer.parseInt(args[0]):2048, height = args.length>1?Integer.parseInt(args[1]):2048;
+		
+		RGB[] gray = new RGB[256], colors = new RGB[256];
+		for (int i=0;i<256;i++) {
+			gray[i] = new RGB(i, i, i);
+			colors[i] = new RGB(i, 255-i, i*7&0xFF);
+		}
+		
+		Object[][] cases = {
+			{ "BGR", image(width, height, 24, new PaletteData(0xFF, 0xFF00, 0xFF0000), false) },
+			{ "BGR+alpha", image(width, height, 24, new PaletteData(0xFF, 0xFF00, 0xFF0000), true) },
+			{ "LUMINANCE", image(width, height, 8, new PaletteData(gray), false) },
+			{ "indexed", image(width, height, 8, new PaletteData(colors), false) },
+			{ "indexed+alpha", image(width, height, 8, new PaletteData(colors), true) },
+		};
+		
+		ByteBuffer to = ByteBuffer.allocateDirect(width*height*4);
+		System.out.println(width+" x "+height+", ns per pixel");
+		
+		for (Object[] c: cases) {
+			ImageData id = (ImageData) c[1];
+			ImageDataTextureSource src = new ImageDataTextureSource(id);
+			int bytesPerLine = width*src.getDepth()/8;
+			
+			double perPixel = measure(() -> perPixel(id, to, bytesPerLine));
+			double grab = measure(() -> src.grab(0, 0, width, height, to, 0, bytesPerLine));
+			
+			System.out.printf("%-14s pixel by pixel %6.2f, grab %6.2f, %5.1fx%n", c[0], perPixel/(width*height), grab/(width*height), perPixel/grab);
+		}
+	}
+	
+	static private ImageData image(int width, int height, int depth, PaletteData palette, boolean alpha) {
+		Random r = new Random(1337);
+		ImageData id = new ImageData(width, height, depth, palette);
+		r.nextBytes(id.data);
+		
+		if (alpha)
+			r.nextBytes(id.alphaData = new byte[width*height]);
+		
+		return id;
+	}
+	
+	//median of the runs in nanoseconds
+	static private double measure(Runnable conversion) {
+		long[] times = new long[RUNS];
+		for (int i=0;i<WARMUP;i++)
+			conversion.run();
+		
+		for (int i=0;i<RUNS;i++) {
+			long start = System.nanoTime();
+			conversion.run();
+			times[i] = System.nanoTime()-start;
+		}
+		
+		Arrays.sort(times);
+		return times[RUNS/2];
+	}
+	
+	//the straightforward way: resolve each pixel through the palette, put it byte by byte
+	static private void perPixel(ImageData id, ByteBuffer to, int bytesPerLine) {
+		boolean luminance = !id.palette.isDirect && id.alphaData==null && ImageDataTextureSource.isGrayScalePalette(id.palette.colors);
+		
+		for (int y=0;y<id.height;y++) {
+			to.position(y*bytesPerLine);
+			for (int x=0;x<id.width;x++) {
+				RGB c = id.palette.getRGB(id.getPixel(x, y));
+				if (luminance)
+					to.put((byte) c.red);
+				else
+					to.put((byte) c.blue).put((byte) c.green).put((byte) c.red);
+				
+				if (id.alphaData!=null)
+					to.put(id.alphaData[y*id.width+x]);
+				else
+				if (!luminance && !id.palette.isDirect)
+					to.put((byte) 0xFF);
+			}
+		}
+	}
+}